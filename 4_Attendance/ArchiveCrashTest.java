@@ -0,0 +1,117 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.*;
+
+// Crashes Archive.compact after each of its steps and checks that the next Archive.open leaves every entry in
+// exactly one place, the log or a committed segment, and none of the compaction's temporary files behind.
+// A plain main, like the logger itself:
+//   javac -d out src.java ArchiveCrashTest.java && java -cp out ArchiveCrashTest
+class ArchiveCrashTest {
+    private static final String[] STEPS = { "log written", "log copied", "segment written", "segment committed", "log replaced" };
+    private static final List<String> LINES = List.of(
+        "2024-01-02,CS101,30,2,Intro",
+        "2024-01-03,CS102,28,4,",
+        "2024-02-01,CS101,29,3,Lab",
+        "not an entry",
+        "2024-01-05,CS101,31,1,Quiz");
+
+    public static void main(String[] args) throws IOException {
+        for (String step : STEPS) crashAfter(step);
+        System.out.println("Archive recovers from a crash after each of " + STEPS.length + " compaction steps.");
+        strayFiles();
+        System.out.println("Archive ignores files that are not NNNNNN.seg segments.");
+    }
+
+    // A file in the archive directory that merely ends in .seg is neither opened nor numbered from
+    private static void strayFiles() throws IOException {
+        Path dir = Files.createTempDirectory("archive-stray");
+        String log = dir.resolve("attendance_log.txt").toString();
+        Path archive = Files.createDirectories(dir.resolve("attendance_archive"));
+        Files.write(Path.of(log), LINES);
+        Files.write(archive.resolve("old.seg"), new byte[] { 1, 2, 3 });
+        Files.write(archive.resolve("1.seg"), new byte[] { 1, 2, 3 });
+        AttendanceLogger.Archive.compact(log, archive.toString(), LocalDate.parse("2024-01-31"),
+            dir.resolve("attendance_summary.state").toString(), dir.resolve("attendance_log.idx").toString());
+        expect("Stray files", "first segment number", true, Files.exists(archive.resolve("000001.seg")));
+        expect("Stray files", "archived", List.of(LINES.get(0), LINES.get(1), LINES.get(4)),
+            sorted(check("Stray files", log, archive.toString())));
+        delete(dir.toFile());
+    }
+
+    private static void crashAfter(String step) throws IOException {
+        Path dir = Files.createTempDirectory("archive-crash");
+        String log = dir.resolve("attendance_log.txt").toString();
+        String archive = dir.resolve("attendance_archive").toString();
+        String state = dir.resolve("attendance_summary.state").toString();
+        String index = dir.resolve("attendance_log.idx").toString();
+        Files.write(Path.of(log), LINES);
+        Files.write(Path.of(state), new byte[] { 1 });
+        Files.write(Path.of(index), new byte[] { 1 });
+        LocalDate through = LocalDate.parse("2024-01-31");
+
+        AttendanceLogger.Archive.afterStep = s -> {
+            if (s.equals(step)) throw new IllegalStateException("crash after " + s);
+        };
+        try {
+            AttendanceLogger.Archive.compact(log, archive, through, state, index);
+            throw new AssertionError("compact() never reached step '" + step + "'");
+        } catch (IllegalStateException expected) {
+            // the simulated crash
+        } finally {
+            AttendanceLogger.Archive.afterStep = s -> { };
+        }
+
+        String crash = "Crash after '" + step + "'";
+        boolean committed = step.equals("segment committed") || step.equals("log replaced");
+        List<String> archived = check(crash, log, archive);
+        expect(crash, "segment committed", committed, !archived.isEmpty());
+        Set<String> leftovers = new TreeSet<>(Arrays.asList(dir.toFile().list()));
+        leftovers.removeAll(Set.of("attendance_log.txt", "attendance_archive", "attendance_summary.state", "attendance_log.idx"));
+        expect(crash, "no compaction files left in " + dir, true, leftovers.isEmpty());
+        String[] segments = new File(archive).list();
+        expect(crash, "only committed segments in " + archive, true,
+            segments == null || Arrays.stream(segments).allMatch(name -> name.endsWith(".seg")));
+
+        // A compaction after recovery archives whatever the crashed one did not
+        AttendanceLogger.Archive.compact(log, archive, through, state, index);
+        expect(crash, "archived after a second compaction", List.of(LINES.get(0), LINES.get(1), LINES.get(4)),
+            sorted(check(crash, log, archive)));
+        delete(dir.toFile());
+    }
+
+    // Asserts that the log and the segments together hold each of LINES once; returns the archived ones
+    private static List<String> check(String testCase, String log, String archive) throws IOException {
+        List<String> archived = new ArrayList<>();
+        for (AttendanceLogger.Segment segment : AttendanceLogger.Archive.open(log, archive)) {
+            Iterator<AttendanceLogger.AttendanceWriter.Entry> entries = segment.entries(null, null, null);
+            while (entries.hasNext()) archived.add(entries.next().toLine());
+        }
+        List<String> all = new ArrayList<>(archived);
+        all.addAll(Files.readAllLines(Path.of(log)));
+        expect(testCase, "every entry exactly once", sorted(LINES), sorted(all));
+        return archived;
+    }
+
+    private static List<String> sorted(List<String> lines) {
+        List<String> copy = new ArrayList<>(lines);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static void expect(String testCase, String what, Object expected, Object actual) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError(testCase + ": " + what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) delete(c);
+        }
+        f.delete();
+    }
+}
@@ -1,55 +1,124 @@
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 class AttendanceLogger {
     private static final String FILE_NAME = "attendance_log.txt";
+    private static final String STATE_FILE = "attendance_summary.state";
+    private static final String INDEX_FILE = "attendance_log.idx";
+    private static final String ARCHIVE_DIR = "attendance_archive";
+    private static AttendanceWriter writer; // opened by the first addEntry, closed on exit
 
     // Add attendance entry
     public static void addEntry(String date, String course, int present, int absent, String notes) {
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(FILE_NAME, true))) {
-            String line = date + "," + course + "," + present + "," + absent + "," + notes;
-            bw.write(line);
-            bw.newLine();
+        try {
+            if (writer == null) writer = new AttendanceWriter(FILE_NAME, AttendanceWriter.FlushPolicy.FLUSH);
+            writer.add(new AttendanceWriter.Entry(date, course, present, absent, notes));
             System.out.println("✅ Attendance entry added successfully.");
         } catch (IOException e) {
             System.out.println("❌ Error writing to file: " + e.getMessage());
         }
     }
 
+    // Bulk import of date,course,present,absent[,notes] lines; fsynced once at the end
+    public static void importEntries(String csvName) {
+        try (AttendanceWriter importer = new AttendanceWriter(FILE_NAME, AttendanceWriter.FlushPolicy.FSYNC)) {
+            long start = System.nanoTime();
+            int[] counts = importer.importCsv(csvName); // [imported, skipped]
+            System.out.printf("✅ Imported %d entries in %.1f s (%d lines skipped).%n",
+                counts[0], (System.nanoTime() - start) / 1e9, counts[1]);
+        } catch (IOException e) {
+            System.out.println("❌ Error importing entries: " + e.getMessage());
+        }
+    }
+
     // Read all entries
     public static void readEntries() {
-        try (BufferedReader br = new BufferedReader(new FileReader(FILE_NAME))) {
-            String line;
-            System.out.println("📘 Attendance Log:");
-            while ((line = br.readLine()) != null) {
-                System.out.println(line);
+        try {
+            List<Segment> archived = Archive.open(FILE_NAME, ARCHIVE_DIR);
+            try (BufferedReader br = new BufferedReader(new FileReader(FILE_NAME))) {
+                String line;
+                System.out.println("📘 Attendance Log:");
+                for (Segment segment : archived) {
+                    Iterator<AttendanceWriter.Entry> entries = segment.entries(null, null, null);
+                    while (entries.hasNext()) {
+                        System.out.println(entries.next().toLine());
+                    }
+                }
+                while ((line = br.readLine()) != null) {
+                    System.out.println(line);
+                }
             }
         } catch (IOException e) {
             System.out.println("❌ Error reading file: " + e.getMessage());
         }
     }
 
-    // Generate summary per course
-    public static void generateSummary() {
-        Map<String, int[]> summary = new HashMap<>(); // course -> [present, absent, days]
-        try (BufferedReader br = new BufferedReader(new FileReader(FILE_NAME))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length >= 4) {
-                    String course = parts[1];
-                    int present = Integer.parseInt(parts[2]);
-                    int absent = Integer.parseInt(parts[3]);
-
-                    summary.putIfAbsent(course, new int[3]);
-                    int[] stats = summary.get(course);
-                    stats[0] += present;
-                    stats[1] += absent;
-                    stats[2]++;
+    // Entries of one course (null for all) between two dates (null for open ends): archived segments first,
+    // then the text log via AttendanceIndex
+    public static void queryEntries(String course, String fromDate, String toDate) {
+        try {
+            List<Segment> archived = Archive.open(FILE_NAME, ARCHIVE_DIR);
+            try (AttendanceIndex index = AttendanceIndex.open(FILE_NAME, INDEX_FILE)) {
+                int n = 0;
+                System.out.println("📘 Matching entries:");
+                for (Segment segment : archived) {
+                    Iterator<AttendanceWriter.Entry> matches = segment.entries(course, fromDate, toDate);
+                    while (matches.hasNext()) {
+                        System.out.println(matches.next().toLine());
+                        n++;
+                    }
                 }
+                Iterator<AttendanceWriter.Entry> matches = index.query(course, fromDate, toDate);
+                while (matches.hasNext()) {
+                    System.out.println(matches.next().toLine());
+                    n++;
+                }
+                System.out.println("🔎 " + n + " entries found.");
             }
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("❌ Error querying entries: " + e.getMessage());
+        }
+    }
 
+    // Moves the entries of closed dates (up to and including throughDate) from the text log into a new
+    // archive segment; the shared writer is closed first since the log file is replaced
+    public static void compactArchive(String throughDate) {
+        try {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            long start = System.nanoTime();
+            long[] result = Archive.compact(FILE_NAME, ARCHIVE_DIR, LocalDate.parse(throughDate), STATE_FILE, INDEX_FILE);
+            System.out.printf("🗄 Archived %d entries in %.1f s: %d KB of text now %d KB in the segment, %d lines stay in the log.%n",
+                result[0], (System.nanoTime() - start) / 1e9, (result[2] - result[3]) / 1024, result[4] / 1024, result[1]);
+        } catch (IOException | DateTimeParseException e) {
+            System.out.println("❌ Error compacting archive: " + e.getMessage());
+        }
+    }
+
+    // Generate summary per course
+    public static void generateSummary() {
+        try {
+            CourseTable totals = new CourseTable();
+            for (Segment segment : Archive.open(FILE_NAME, ARCHIVE_DIR)) segment.summarize(totals);
+            totals.addAll(SummaryState.summarize(FILE_NAME, STATE_FILE));
+            Map<String, int[]> summary = totals.toMap(); // course -> [present, absent, days]
             for (String course : summary.keySet()) {
                 int[] stats = summary.get(course);
                 double avg = (stats[0] * 100.0) / (stats[0] + stats[1]);
@@ -73,6 +142,1260 @@ class AttendanceLogger {
         }
     }
 
+    // Summarizes the log without a String per line: the file is cut into line-aligned chunks, each chunk is
+    // memory-mapped and parsed straight from its bytes on the fork/join pool into its own CourseTable, and
+    // the tables are merged pairwise as the tasks join. Lines count exactly as with split(",") and
+    // Integer.parseInt: a line needs a non-empty field after the third comma, and a bad number throws.
+    static final class SummaryEngine extends RecursiveTask<CourseTable> {
+        private static final long serialVersionUID = 1L;
+        private static final long MIN_CHUNK = 1 << 20;
+        private static final long MAX_CHUNK = 64 << 20;
+
+        private final FileChannel channel;
+        private final long[] bounds; // chunk k is [bounds[k], bounds[k + 1])
+        private final int lo, hi;
+
+        private SummaryEngine(FileChannel channel, long[] bounds, int lo, int hi) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        // Totals of the lines in [from, to); from must be a line start
+        static CourseTable summarize(FileChannel channel, long from, long to) throws IOException {
+            long chunk = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, (to - from) / (ForkJoinPool.getCommonPoolParallelism() * 4L)));
+            long[] bounds = chunkBounds(channel, from, to, chunk);
+            if (bounds.length < 2) return new CourseTable();
+            try {
+                return ForkJoinPool.commonPool().invoke(new SummaryEngine(channel, bounds, 0, bounds.length - 1));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        @Override
+        protected CourseTable compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                SummaryEngine left = new SummaryEngine(channel, bounds, lo, mid);
+                left.fork();
+                CourseTable right = new SummaryEngine(channel, bounds, mid, hi).compute();
+                CourseTable merged = left.join();
+                merged.addAll(right);
+                return merged;
+            }
+            long length = bounds[hi] - bounds[lo];
+            try {
+                if (length > Integer.MAX_VALUE) throw new IOException("Line longer than 2 GB at offset " + bounds[lo]);
+                CourseTable table = new CourseTable();
+                parse(channel.map(FileChannel.MapMode.READ_ONLY, bounds[lo], length), table);
+                return table;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Chunk starts, each just after a line break, plus the end
+        static long[] chunkBounds(FileChannel channel, long from, long to, long chunk) throws IOException {
+            long[] bounds = new long[(int) ((to - from) / chunk) + 2];
+            int n = 0;
+            ByteBuffer probe = ByteBuffer.allocate(8192);
+            for (long pos = from; pos < to; ) {
+                bounds[n++] = pos;
+                pos = pos + chunk >= to ? to : nextLineStart(channel, pos + chunk, to, probe);
+            }
+            bounds[n++] = to;
+            return n == 1 ? new long[0] : Arrays.copyOf(bounds, n);
+        }
+
+        // Just past the last line break in [from, to), or from if there is none
+        static long lastLineEnd(FileChannel channel, long from, long to) throws IOException {
+            ByteBuffer probe = ByteBuffer.allocate(8192);
+            for (long end = to; end > from; ) {
+                long start = Math.max(from, end - probe.capacity());
+                probe.clear().limit((int) (end - start));
+                while (probe.hasRemaining() && channel.read(probe, start + probe.position()) > 0) { }
+                for (int i = probe.position() - 1; i >= 0; i--) {
+                    byte b = probe.get(i);
+                    if (b == '\n' || b == '\r') return start + i + 1;
+                }
+                end = start;
+            }
+            return from;
+        }
+
+        private static long nextLineStart(FileChannel channel, long from, long size, ByteBuffer probe) throws IOException {
+            for (long pos = from - 1; pos < size; ) {
+                probe.clear();
+                int n = channel.read(probe, pos);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    byte b = probe.get(i);
+                    if (b == '\n' || b == '\r') return pos + i + 1;
+                }
+                pos += n;
+            }
+            return size;
+        }
+
+        // Lines end at \n or \r like BufferedReader.readLine; empty lines between \r and \n are skipped
+        static void parse(ByteBuffer buf, CourseTable table) {
+            byte[] course = new byte[64];
+            int limit = buf.limit();
+            for (int i = 0; i < limit; ) {
+                int commas = 0, c1 = -1, c2 = -1, c3 = -1, c4 = -1;
+                boolean tail = false; // a non-empty field after the third comma
+                int end = i;
+                for (; end < limit; end++) {
+                    byte b = buf.get(end);
+                    if (b == '\n' || b == '\r') break;
+                    if (b == ',') {
+                        commas++;
+                        if (commas == 1) c1 = end;
+                        else if (commas == 2) c2 = end;
+                        else if (commas == 3) c3 = end;
+                        else if (commas == 4) c4 = end;
+                    } else if (commas >= 3) {
+                        tail = true;
+                    }
+                }
+                i = end + 1;
+                if (!tail) continue; // split(",") gives fewer than 4 fields
+                if (c4 < 0) c4 = end;
+
+                int length = c2 - c1 - 1;
+                if (length > course.length) course = new byte[Math.max(length, course.length * 2)];
+                buf.get(c1 + 1, course, 0, length);
+                int present = parseInt(buf, c2 + 1, c3);
+                int absent = parseInt(buf, c3 + 1, c4);
+                int e = table.entry(course, 0, length, CourseTable.hash(course, 0, length));
+                table.present[e] += present;
+                table.absent[e] += absent;
+                table.days[e]++;
+            }
+        }
+
+        // Plain ASCII digits in place; anything else goes through Integer.parseInt for its exact behaviour
+        static int parseInt(ByteBuffer buf, int from, int to) {
+            int i = from;
+            boolean negative = false;
+            if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) negative = buf.get(i++) == '-';
+            if (i < to && to - i <= 9) {
+                int value = 0;
+                for (; i < to; i++) {
+                    int digit = buf.get(i) - '0';
+                    if (digit < 0 || digit > 9) break;
+                    value = value * 10 + digit;
+                }
+                if (i == to) return negative ? -value : value;
+            }
+            byte[] field = new byte[to - from];
+            buf.get(from, field);
+            return Integer.parseInt(new String(field, Charset.defaultCharset()));
+        }
+    }
+
+    // Per-course totals of the log up to a line boundary, kept in STATE_FILE so that a summary only parses
+    // what was appended since the previous one. The state also holds a CRC of the bytes just before its
+    // offset: a log that was truncated or rewritten there no longer matches and is summarized from byte zero.
+    // A last line without a line break yet is counted but left out of the state.
+    static final class SummaryState {
+        private static final int MAGIC = 0x41545331; // "ATS1"
+        private static final int CHECK_BYTES = 4096;
+
+        static CourseTable summarize(String logName, String stateName) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(logName, "r")) {
+                FileChannel channel = file.getChannel();
+                long size = channel.size();
+                CourseTable totals = new CourseTable();
+                long from = 0;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateName)))) {
+                    if (in.readInt() == MAGIC) {
+                        long offset = in.readLong();
+                        long check = in.readLong();
+                        if (offset <= size && check == checksum(channel, offset)) {
+                            totals = CourseTable.readFrom(in);
+                            from = offset;
+                        }
+                    }
+                } catch (FileNotFoundException | EOFException e) {
+                    // no usable state: start over
+                }
+                long end = SummaryEngine.lastLineEnd(channel, from, size);
+                if (end > from || from == 0) {
+                    totals.addAll(SummaryEngine.summarize(channel, from, end));
+                    save(stateName, totals, end, checksum(channel, end));
+                }
+                totals.addAll(SummaryEngine.summarize(channel, end, size));
+                return totals;
+            }
+        }
+
+        static long checksum(FileChannel channel, long offset) throws IOException {
+            long start = Math.max(0, offset - CHECK_BYTES);
+            ByteBuffer buf = ByteBuffer.allocate((int) (offset - start));
+            while (buf.hasRemaining() && channel.read(buf, start + buf.position()) > 0) { }
+            CRC32 crc = new CRC32();
+            crc.update(buf.flip());
+            return crc.getValue();
+        }
+
+        // Written aside and renamed, so a crash leaves either the old state or the new one
+        private static void save(String stateName, CourseTable totals, long offset, long check) throws IOException {
+            File tmp = new File(stateName + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(offset);
+                out.writeLong(check);
+                totals.writeTo(out);
+            }
+            Files.move(tmp.toPath(), Paths.get(stateName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // course bytes -> [present, absent, days], open addressing over a byte arena; int sums wrap like the
+    // int[] counters they replace
+    static final class CourseTable {
+        private int[] slots = new int[64]; // entry + 1, 0 = free
+        private byte[] keys = new byte[1024];
+        private int keyBytes;
+        private int[] keyStart = new int[16], keyLength = new int[16], keyHash = new int[16];
+        int[] present = new int[16], absent = new int[16], days = new int[16];
+        int size;
+
+        static int hash(byte[] b, int off, int len) {
+            int h = 1;
+            for (int i = off; i < off + len; i++) h = 31 * h + b[i];
+            return h;
+        }
+
+        // Entry for the key b[off, off + len), added with zero counts if new
+        int entry(byte[] b, int off, int len, int hash) {
+            int mask = slots.length - 1;
+            for (int s = (hash ^ (hash >>> 16)) & mask; ; s = (s + 1) & mask) {
+                int e = slots[s] - 1;
+                if (e < 0) {
+                    e = add(b, off, len, hash);
+                    slots[s] = e + 1;
+                    if (size * 2 > slots.length) rehash();
+                    return e;
+                }
+                if (keyHash[e] == hash && Arrays.equals(keys, keyStart[e], keyStart[e] + keyLength[e], b, off, off + len)) {
+                    return e;
+                }
+            }
+        }
+
+        // Entry for the key, or -1 if absent
+        int find(byte[] b, int off, int len, int hash) {
+            int mask = slots.length - 1;
+            for (int s = (hash ^ (hash >>> 16)) & mask; slots[s] != 0; s = (s + 1) & mask) {
+                int e = slots[s] - 1;
+                if (keyHash[e] == hash && Arrays.equals(keys, keyStart[e], keyStart[e] + keyLength[e], b, off, off + len)) {
+                    return e;
+                }
+            }
+            return -1;
+        }
+
+        private int add(byte[] b, int off, int len, int hash) {
+            if (size == keyStart.length) {
+                int n = size * 2;
+                keyStart = Arrays.copyOf(keyStart, n);
+                keyLength = Arrays.copyOf(keyLength, n);
+                keyHash = Arrays.copyOf(keyHash, n);
+                present = Arrays.copyOf(present, n);
+                absent = Arrays.copyOf(absent, n);
+                days = Arrays.copyOf(days, n);
+            }
+            if (keyBytes + len > keys.length) keys = Arrays.copyOf(keys, Math.max(keyBytes + len, keys.length * 2));
+            System.arraycopy(b, off, keys, keyBytes, len);
+            keyStart[size] = keyBytes;
+            keyLength[size] = len;
+            keyHash[size] = hash;
+            keyBytes += len;
+            return size++;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int e = 0; e < size; e++) {
+                int s = (keyHash[e] ^ (keyHash[e] >>> 16)) & mask;
+                while (slots[s] != 0) s = (s + 1) & mask;
+                slots[s] = e + 1;
+            }
+        }
+
+        void addAll(CourseTable other) {
+            for (int e = 0; e < other.size; e++) {
+                int m = entry(other.keys, other.keyStart[e], other.keyLength[e], other.keyHash[e]);
+                present[m] += other.present[e];
+                absent[m] += other.absent[e];
+                days[m] += other.days[e];
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            for (int e = 0; e < size; e++) {
+                out.writeInt(keyLength[e]);
+                out.write(keys, keyStart[e], keyLength[e]);
+                out.writeInt(present[e]);
+                out.writeInt(absent[e]);
+                out.writeInt(days[e]);
+            }
+        }
+
+        static CourseTable readFrom(DataInputStream in) throws IOException {
+            CourseTable table = new CourseTable();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                int e = table.entry(key, 0, key.length, hash(key, 0, key.length));
+                table.present[e] = in.readInt();
+                table.absent[e] = in.readInt();
+                table.days[e] = in.readInt();
+            }
+            return table;
+        }
+
+        // Keys are decoded like FileReader does; byte sequences that decode alike (malformed input) share a course.
+        // Entries are in order of first appearance and go in with putIfAbsent, so the map iterates in the same
+        // order as one filled line by line (computeIfAbsent would put new keys first within a bucket).
+        Map<String, int[]> toMap() {
+            Map<String, int[]> map = new HashMap<>();
+            for (int e = 0; e < size; e++) {
+                String course = new String(keys, keyStart[e], keyLength[e], Charset.defaultCharset());
+                map.putIfAbsent(course, new int[3]);
+                int[] stats = map.get(course);
+                stats[0] += present[e];
+                stats[1] += absent[e];
+                stats[2] += days[e];
+            }
+            return map;
+        }
+    }
+
+    // Appends to the log through one open channel instead of opening the file per entry. Lines are encoded
+    // like FileWriter does into a buffer that is only ever written out at line boundaries, so a summary
+    // running meanwhile never reads half a line. The policy decides what happens after each add/addEntries.
+    static final class AttendanceWriter implements Closeable {
+        enum FlushPolicy {
+            BUFFERED, // write when the buffer is full and on close
+            FLUSH,    // write after each add / addEntries call
+            FSYNC     // likewise, then force the file to disk
+        }
+
+        static final class Entry {
+            final String date;
+            final String course;
+            final int present;
+            final int absent;
+            final String notes;
+
+            Entry(String date, String course, int present, int absent, String notes) {
+                this.date = date;
+                this.course = course;
+                this.present = present;
+                this.absent = absent;
+                this.notes = notes;
+            }
+
+            String toLine() {
+                return date + "," + course + "," + present + "," + absent + "," + notes;
+            }
+        }
+
+        private static final byte[] NEWLINE = System.lineSeparator().getBytes(Charset.defaultCharset());
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private final FlushPolicy policy;
+
+        AttendanceWriter(String fileName, FlushPolicy policy) throws IOException {
+            this.channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.policy = policy;
+        }
+
+        void add(Entry entry) throws IOException {
+            append(entry.toLine());
+            endBatch();
+        }
+
+        int addEntries(Iterable<Entry> entries) throws IOException {
+            int n = 0;
+            for (Entry entry : entries) {
+                append(entry.toLine());
+                n++;
+            }
+            endBatch();
+            return n;
+        }
+
+        // Lines without two numbers in the third and fourth field (headers, blanks, typos) are skipped, so
+        // the log stays summarizable. Notes keep any commas. Returns [imported, skipped].
+        int[] importCsv(String csvName) throws IOException {
+            int imported = 0, skipped = 0;
+            try (BufferedReader br = new BufferedReader(new FileReader(csvName), 1 << 16)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split(",", 5);
+                    try {
+                        if (parts.length < 4) throw new NumberFormatException();
+                        Entry entry = new Entry(parts[0], parts[1], Integer.parseInt(parts[2].trim()),
+                            Integer.parseInt(parts[3].trim()), parts.length == 5 ? parts[4] : "");
+                        append(entry.toLine());
+                        imported++;
+                    } catch (NumberFormatException e) {
+                        skipped++;
+                    }
+                }
+            }
+            endBatch();
+            return new int[] { imported, skipped };
+        }
+
+        private void append(String line) throws IOException {
+            byte[] bytes = line.getBytes(Charset.defaultCharset());
+            if (buffer.remaining() < bytes.length + NEWLINE.length) {
+                writeBuffer();
+                if (buffer.remaining() < bytes.length + NEWLINE.length) { // longer than the buffer
+                    write(ByteBuffer.wrap(bytes));
+                    write(ByteBuffer.wrap(NEWLINE));
+                    return;
+                }
+            }
+            buffer.put(bytes).put(NEWLINE);
+        }
+
+        private void endBatch() throws IOException {
+            if (policy == FlushPolicy.BUFFERED) return;
+            writeBuffer();
+            if (policy == FlushPolicy.FSYNC) channel.force(false);
+        }
+
+        private void writeBuffer() throws IOException {
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+        }
+
+        private void write(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) channel.write(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writeBuffer();
+                if (policy == FlushPolicy.FSYNC) channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Query layer over the log. The log is cut at line boundaries into blocks of about BLOCK_SIZE bytes; per
+    // block the index keeps its byte range and its smallest and largest date (a sparse date index that holds
+    // whatever order entries arrive in), and per course a posting list of the blocks it occurs in. A query
+    // only reads the blocks on the course's list whose date range overlaps, and streams the matching entries.
+    // Dates compare as text, so YYYY-MM-DD sorts chronologically.
+    // The index is kept in INDEX_FILE, validated like SummaryState, and extended before each query: the last,
+    // partly filled block is indexed again together with whatever was appended since. A last line without a
+    // line break yet is not indexed.
+    static final class AttendanceIndex implements Closeable {
+        private static final int MAGIC = 0x41544931; // "ATI1"
+        private static final int BLOCK_SIZE = 64 << 10;
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final String indexName;
+        private long covered; // indexed up to here, a line boundary
+        private int blocks;
+        private long[] blockStart = new long[64], blockEnd = new long[64];
+        private byte[][] minDate = new byte[64][], maxDate = new byte[64][]; // null for a block without entries
+        private CourseTable courses = new CourseTable(); // course -> id (its entry); counts unused
+        private int[][] postings = new int[16][]; // per course id, ascending block numbers
+        private int[] postingSize = new int[16];
+
+        private AttendanceIndex(String logName, String indexName) throws IOException {
+            this.file = new RandomAccessFile(logName, "r");
+            this.channel = file.getChannel();
+            this.indexName = indexName;
+        }
+
+        static AttendanceIndex open(String logName, String indexName) throws IOException {
+            AttendanceIndex index = new AttendanceIndex(logName, indexName);
+            try {
+                index.load();
+                index.refresh();
+                return index;
+            } catch (IOException | RuntimeException e) {
+                index.close();
+                throw e;
+            }
+        }
+
+        // Entries of course (null for all) dated from..to inclusive (null for open ends), in log order
+        Iterator<AttendanceWriter.Entry> query(String course, String fromDate, String toDate) throws IOException {
+            refresh();
+            byte[] courseKey = course == null ? null : course.getBytes(Charset.defaultCharset());
+            byte[] from = fromDate == null ? null : fromDate.getBytes(Charset.defaultCharset());
+            byte[] to = toDate == null ? null : toDate.getBytes(Charset.defaultCharset());
+            int[] candidates;
+            int n;
+            if (courseKey == null) {
+                candidates = new int[blocks];
+                for (int b = 0; b < blocks; b++) candidates[b] = b;
+                n = blocks;
+            } else {
+                int id = courses.find(courseKey, 0, courseKey.length, CourseTable.hash(courseKey, 0, courseKey.length));
+                candidates = id < 0 ? new int[0] : postings[id];
+                n = id < 0 ? 0 : postingSize[id];
+            }
+            int[] selected = new int[n];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                int b = candidates[i];
+                if (minDate[b] == null) continue;
+                if (to != null && Arrays.compareUnsigned(minDate[b], to) > 0) continue;
+                if (from != null && Arrays.compareUnsigned(maxDate[b], from) < 0) continue;
+                selected[k++] = b;
+            }
+            return new Matches(Arrays.copyOf(selected, k), courseKey, from, to);
+        }
+
+        int blockCount() { return blocks; }
+
+        // Indexes what was appended since the last call and saves the index if anything changed
+        void refresh() throws IOException {
+            long size = channel.size();
+            if (covered > size) reset(); // truncated under us
+            long end = SummaryEngine.lastLineEnd(channel, covered, size);
+            if (end == covered) return;
+            if (blocks > 0 && blockEnd[blocks - 1] - blockStart[blocks - 1] < BLOCK_SIZE) dropLastBlock();
+            long from = blocks == 0 ? 0 : blockEnd[blocks - 1];
+            long[] bounds = SummaryEngine.chunkBounds(channel, from, end, 64 << 20);
+            Builder builder = new Builder(from);
+            for (int c = 0; c + 1 < bounds.length; c++) {
+                builder.scan(channel.map(FileChannel.MapMode.READ_ONLY, bounds[c], bounds[c + 1] - bounds[c]), bounds[c]);
+            }
+            builder.closeBlock(end);
+            covered = end;
+            save();
+        }
+
+        // Collects one block at a time while scanning line by line
+        private final class Builder {
+            private long start;
+            private byte[] min, max;
+            private byte[] scratch = new byte[64];
+            private int[] lastBlock = new int[16]; // per course id, the last block posted + 1
+
+            Builder(long start) {
+                this.start = start;
+                for (int id = 0; id < courses.size; id++) track(id);
+            }
+
+            private void track(int id) {
+                if (id >= lastBlock.length) lastBlock = Arrays.copyOf(lastBlock, Math.max(id + 1, lastBlock.length * 2));
+                lastBlock[id] = postingSize(id) > 0 ? postings[id][postingSize(id) - 1] + 1 : 0;
+            }
+
+            void scan(ByteBuffer buf, long base) {
+                int limit = buf.limit();
+                for (int i = 0; i < limit; ) {
+                    int commas = 0, c1 = -1, c2 = -1;
+                    int end = i;
+                    for (; end < limit; end++) {
+                        byte b = buf.get(end);
+                        if (b == '\n' || b == '\r') break;
+                        if (b == ',' && ++commas <= 2) {
+                            if (commas == 1) c1 = end;
+                            else c2 = end;
+                        }
+                    }
+                    if (commas >= 3) entry(buf, i, c1, c2);
+                    i = end + 1;
+                    if (base + i - start >= BLOCK_SIZE) closeBlock(Math.min(base + i, base + limit));
+                }
+            }
+
+            private void entry(ByteBuffer buf, int lineStart, int c1, int c2) {
+                int dateLength = c1 - lineStart;
+                byte[] date = copy(buf, lineStart, dateLength);
+                if (min == null || Arrays.compareUnsigned(date, 0, dateLength, min, 0, min.length) < 0) min = Arrays.copyOf(date, dateLength);
+                if (max == null || Arrays.compareUnsigned(date, 0, dateLength, max, 0, max.length) > 0) max = Arrays.copyOf(date, dateLength);
+                int courseLength = c2 - c1 - 1;
+                byte[] course = copy(buf, c1 + 1, courseLength);
+                int id = courses.entry(course, 0, courseLength, CourseTable.hash(course, 0, courseLength));
+                if (id >= postings.length || postings[id] == null) { // a new course
+                    addCourse(id);
+                    track(id);
+                }
+                if (lastBlock[id] != blocks + 1) {
+                    post(id, blocks);
+                    lastBlock[id] = blocks + 1;
+                }
+            }
+
+            private byte[] copy(ByteBuffer buf, int from, int length) {
+                if (length > scratch.length) scratch = new byte[Math.max(length, scratch.length * 2)];
+                buf.get(from, scratch, 0, length);
+                return scratch;
+            }
+
+            void closeBlock(long end) {
+                if (end <= start) return;
+                if (blocks == blockStart.length) {
+                    int n = blocks * 2;
+                    blockStart = Arrays.copyOf(blockStart, n);
+                    blockEnd = Arrays.copyOf(blockEnd, n);
+                    minDate = Arrays.copyOf(minDate, n);
+                    maxDate = Arrays.copyOf(maxDate, n);
+                }
+                blockStart[blocks] = start;
+                blockEnd[blocks] = end;
+                minDate[blocks] = min;
+                maxDate[blocks] = max;
+                blocks++;
+                start = end;
+                min = max = null;
+            }
+        }
+
+        private int postingSize(int id) { return id < postingSize.length ? postingSize[id] : 0; }
+
+        private void addCourse(int id) {
+            if (id >= postings.length) {
+                postings = Arrays.copyOf(postings, Math.max(id + 1, postings.length * 2));
+                postingSize = Arrays.copyOf(postingSize, postings.length);
+            }
+            if (postings[id] == null) postings[id] = new int[4];
+        }
+
+        private void post(int id, int block) {
+            if (postingSize[id] == postings[id].length) postings[id] = Arrays.copyOf(postings[id], postingSize[id] * 2);
+            postings[id][postingSize[id]++] = block;
+        }
+
+        private void dropLastBlock() {
+            blocks--;
+            for (int id = 0; id < courses.size; id++) {
+                if (postingSize[id] > 0 && postings[id][postingSize[id] - 1] == blocks) postingSize[id]--;
+            }
+            covered = blockStart[blocks];
+        }
+
+        private void reset() {
+            covered = 0;
+            blocks = 0;
+            courses = new CourseTable();
+            postings = new int[16][];
+            postingSize = new int[16];
+        }
+
+        private void load() throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexName)))) {
+                if (in.readInt() != MAGIC) return;
+                long offset = in.readLong();
+                long check = in.readLong();
+                if (offset > channel.size() || check != SummaryState.checksum(channel, offset)) return;
+                int n = in.readInt();
+                blockStart = new long[Math.max(64, n)];
+                blockEnd = new long[blockStart.length];
+                minDate = new byte[blockStart.length][];
+                maxDate = new byte[blockStart.length][];
+                for (int b = 0; b < n; b++) {
+                    blockStart[b] = in.readLong();
+                    blockEnd[b] = in.readLong();
+                    minDate[b] = readBytes(in);
+                    maxDate[b] = readBytes(in);
+                }
+                CourseTable table = CourseTable.readFrom(in);
+                int[][] lists = new int[Math.max(16, table.size)][];
+                int[] sizes = new int[lists.length];
+                for (int id = 0; id < table.size; id++) {
+                    sizes[id] = in.readInt();
+                    lists[id] = new int[Math.max(4, sizes[id])];
+                    for (int i = 0; i < sizes[id]; i++) lists[id][i] = in.readInt();
+                }
+                blocks = n;
+                courses = table;
+                postings = lists;
+                postingSize = sizes;
+                covered = offset;
+            } catch (FileNotFoundException | EOFException e) {
+                reset(); // no usable index: build it from scratch
+            }
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            int n = in.readInt();
+            if (n < 0) return null;
+            byte[] b = new byte[n];
+            in.readFully(b);
+            return b;
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+            out.writeInt(b == null ? -1 : b.length);
+            if (b != null) out.write(b);
+        }
+
+        private void save() throws IOException {
+            File tmp = new File(indexName + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(covered);
+                out.writeLong(SummaryState.checksum(channel, covered));
+                out.writeInt(blocks);
+                for (int b = 0; b < blocks; b++) {
+                    out.writeLong(blockStart[b]);
+                    out.writeLong(blockEnd[b]);
+                    writeBytes(out, minDate[b]);
+                    writeBytes(out, maxDate[b]);
+                }
+                courses.writeTo(out);
+                for (int id = 0; id < courses.size; id++) {
+                    out.writeInt(postingSize[id]);
+                    for (int i = 0; i < postingSize[id]; i++) out.writeInt(postings[id][i]);
+                }
+            }
+            Files.move(tmp.toPath(), Paths.get(indexName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Reads the selected blocks one at a time and parses matches straight from their bytes; lines that
+        // are not entries (no two counts) are skipped
+        private final class Matches implements Iterator<AttendanceWriter.Entry> {
+            private final int[] selected;
+            private final byte[] course, from, to;
+            private int nextBlock;
+            private ByteBuffer block = ByteBuffer.allocate(0);
+            private AttendanceWriter.Entry pending;
+
+            Matches(int[] selected, byte[] course, byte[] from, byte[] to) {
+                this.selected = selected;
+                this.course = course;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (pending == null) {
+                    if (block.hasRemaining()) {
+                        pending = nextLine();
+                    } else if (nextBlock < selected.length) {
+                        int b = selected[nextBlock++];
+                        block = ByteBuffer.allocate((int) (blockEnd[b] - blockStart[b]));
+                        try {
+                            while (block.hasRemaining() && channel.read(block, blockStart[b] + block.position()) > 0) { }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        block.flip();
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public AttendanceWriter.Entry next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                AttendanceWriter.Entry entry = pending;
+                pending = null;
+                return entry;
+            }
+
+            // The entry on the line at the block's position if it matches, else null; advances past the line
+            private AttendanceWriter.Entry nextLine() {
+                int start = block.position(), limit = block.limit();
+                int commas = 0, c1 = -1, c2 = -1, c3 = -1, c4 = -1;
+                int end = start;
+                for (; end < limit; end++) {
+                    byte b = block.get(end);
+                    if (b == '\n' || b == '\r') break;
+                    if (b == ',') {
+                        commas++;
+                        if (commas == 1) c1 = end;
+                        else if (commas == 2) c2 = end;
+                        else if (commas == 3) c3 = end;
+                        else if (commas == 4) c4 = end;
+                    }
+                }
+                block.position(Math.min(end + 1, limit));
+                if (commas < 3) return null;
+                byte[] bytes = block.array();
+                if (from != null && Arrays.compareUnsigned(bytes, start, c1, from, 0, from.length) < 0) return null;
+                if (to != null && Arrays.compareUnsigned(bytes, start, c1, to, 0, to.length) > 0) return null;
+                if (course != null && !Arrays.equals(bytes, c1 + 1, c2, course, 0, course.length)) return null;
+                int present, absent;
+                try {
+                    present = SummaryEngine.parseInt(block, c2 + 1, c3);
+                    absent = SummaryEngine.parseInt(block, c3 + 1, c4 < 0 ? end : c4);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                Charset cs = Charset.defaultCharset();
+                return new AttendanceWriter.Entry(new String(bytes, start, c1 - start, cs),
+                    new String(bytes, c1 + 1, c2 - c1 - 1, cs), present, absent,
+                    c4 < 0 ? "" : new String(bytes, c4 + 1, end - c4 - 1, cs));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    // Closed date ranges moved out of the text log into columnar segments, ARCHIVE_DIR/NNNNNN.seg, by
+    // compact(). Only entries whose line is exactly what addEntry writes for them are archived, so they read
+    // back byte for byte; anything else stays in the text log. A compaction runs in this order:
+    //   1. the kept lines go to <log>.NNNNNN.compact.tmp, which is renamed to <log>.NNNNNN.compact when complete
+    //   2. the segment goes to NNNNNN.seg.tmp; the summary state and query index are dropped
+    //   3. NNNNNN.seg.tmp is renamed to NNNNNN.seg: the commit point
+    //   4. <log>.NNNNNN.compact is renamed over the log
+    // open() finishes step 4 after a crash only if segment NNNNNN is committed, and deletes everything else
+    // a compaction left behind, so every entry is either in the log or in a segment, never both.
+    static final class Archive {
+        // Called with the name of each step of compact() once it is done; tests throw from it to crash there
+        static Consumer<String> afterStep = step -> { };
+
+        static List<Segment> open(String logName, String dir) throws IOException {
+            recover(logName, dir);
+            File[] files = segmentFiles(dir);
+            List<Segment> segments = new ArrayList<>();
+            Arrays.sort(files);
+            for (File f : files) segments.add(new Segment(f.toPath()));
+            return segments;
+        }
+
+        // The committed segments in dir. Only NNNNNN.seg names count: any other file there, even one ending in
+        // .seg, is neither opened nor taken into account for the next sequence number.
+        private static File[] segmentFiles(String dir) {
+            File[] files = new File(dir).listFiles((d, name) -> isSegment(name));
+            return files == null ? new File[0] : files;
+        }
+
+        private static boolean isSegment(String name) {
+            return name.matches("\\d{6}\\.seg");
+        }
+
+        private static void recover(String logName, String dir) throws IOException {
+            File[] pending = new File(dir).listFiles((d, name) -> name.endsWith(".seg.tmp"));
+            if (pending != null) {
+                for (File f : pending) f.delete();
+            }
+            File log = new File(logName).getAbsoluteFile();
+            String prefix = log.getName() + ".";
+            File[] compacted = log.getParentFile().listFiles((d, name) -> name.startsWith(prefix)
+                && (name.endsWith(".compact") || name.endsWith(".compact.tmp")));
+            if (compacted == null) return;
+            for (File f : compacted) {
+                String name = f.getName();
+                if (name.endsWith(".compact")) {
+                    String sequence = name.substring(prefix.length(), name.length() - ".compact".length());
+                    if (isSegment(sequence + ".seg") && new File(dir, sequence + ".seg").exists()) {
+                        Files.move(f.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        continue;
+                    }
+                }
+                f.delete();
+            }
+        }
+
+        // Archives the entries dated up to and including through; the summary state and query index of the
+        // rewritten log are dropped. Returns [entries archived, lines kept, log bytes before, after, segment bytes].
+        static long[] compact(String logName, String dir, LocalDate through, String stateName, String indexName) throws IOException {
+            recover(logName, dir);
+            Files.createDirectories(Paths.get(dir));
+            int sequence = 1;
+            for (File f : segmentFiles(dir)) sequence = Math.max(sequence, Integer.parseInt(f.getName().replace(".seg", "")) + 1);
+            File target = new File(dir, String.format("%06d.seg", sequence));
+            File tmp = new File(dir, target.getName() + ".tmp");
+            File compacted = new File(String.format("%s.%06d.compact", logName, sequence));
+            File compactedTmp = new File(compacted.getPath() + ".tmp");
+
+            Segment.Builder segment = new Segment.Builder();
+            long kept = 0;
+            long before = new File(logName).length();
+            // Kept lines are copied as raw bytes, line break included, so the log keeps its encoding and line
+            // breaks. Lines end at \n, \r or \r\n like in SummaryEngine.parse.
+            try (FileInputStream in = new FileInputStream(logName);
+                 FileOutputStream fos = new FileOutputStream(compactedTmp);
+                 BufferedOutputStream out = new BufferedOutputStream(fos, 1 << 16)) {
+                byte[] block = new byte[1 << 16];
+                byte[] line = new byte[256];
+                int length = 0;
+                for (int n; (n = in.read(block)) > 0; ) {
+                    for (int i = 0; i < n; i++) {
+                        byte b = block[i];
+                        if (length > 0 && line[length - 1] == '\r' && b != '\n') { // the line ended at \r alone
+                            if (!archive(line, length, through, segment)) {
+                                out.write(line, 0, length);
+                                kept++;
+                            }
+                            length = 0;
+                        }
+                        if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                        line[length++] = b;
+                        if (b == '\n') {
+                            if (!archive(line, length, through, segment)) {
+                                out.write(line, 0, length);
+                                kept++;
+                            }
+                            length = 0;
+                        }
+                    }
+                }
+                if (length > 0 && !archive(line, length, through, segment)) {
+                    out.write(line, 0, length);
+                    kept++;
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            if (segment.rows == 0) {
+                compactedTmp.delete();
+                return new long[] { 0, kept, before, before, 0 };
+            }
+            afterStep.accept("log written");
+            Files.move(compactedTmp.toPath(), compacted.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            afterStep.accept("log copied");
+            segment.write(tmp);
+            // Both describe the log being replaced; they are rebuilt from the new one when next needed
+            new File(stateName).delete();
+            new File(indexName).delete();
+            afterStep.accept("segment written");
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            afterStep.accept("segment committed");
+            Files.move(compacted.toPath(), Paths.get(logName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            afterStep.accept("log replaced");
+            return new long[] { segment.rows, kept, before, new File(logName).length(), target.length() };
+        }
+
+        // Adds the line (the first length bytes of line, with its line break) to the segment if it is an entry
+        // dated up to through whose bytes it reads back as exactly; a line that does not decode and encode
+        // to the same bytes in the log's charset stays in the log
+        private static boolean archive(byte[] line, int length, LocalDate through, Segment.Builder segment) {
+            int end = length;
+            if (end > 0 && line[end - 1] == '\n') end--;
+            if (end > 0 && line[end - 1] == '\r') end--;
+            String text = new String(line, 0, end, Charset.defaultCharset());
+            byte[] encoded = text.getBytes(Charset.defaultCharset());
+            return Arrays.equals(encoded, 0, encoded.length, line, 0, end) && archive(text, through, segment);
+        }
+
+        private static boolean archive(String line, LocalDate through, Segment.Builder segment) {
+            String[] parts = line.split(",", 5);
+            if (parts.length < 5) return false;
+            try {
+                LocalDate date = LocalDate.parse(parts[0]);
+                int present = Integer.parseInt(parts[2]);
+                int absent = Integer.parseInt(parts[3]);
+                if (date.isAfter(through)) return false;
+                if (!line.equals(date + "," + parts[1] + "," + present + "," + absent + "," + parts[4])) return false;
+                segment.add((int) date.toEpochDay(), parts[1], present, absent, parts[4]);
+                return true;
+            } catch (DateTimeParseException | NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+
+    // One archive segment, read through a mapping of the file. Rows are stored column by column:
+    //   courses, notes    dictionaries: count, then length-prefixed strings
+    //   dates             epoch day of the first row, then zigzag varint deltas from row to row
+    //   course, note ids  bit-packed dictionary ids
+    //   present, absent   frame of reference: the minimum, then bit-packed offsets from it
+    // A footer holds the row count, min/max of date, present and absent, and the column offsets; the file
+    // ends with the footer's offset and MAGIC. A summary only decodes the course, present and absent columns.
+    static final class Segment {
+        private static final int MAGIC = 0x41545347; // "ATSG"
+        private static final int VERSION = 1;
+        private static final int COURSES = 0, NOTES = 1, DATES = 2, COURSE_IDS = 3, NOTE_IDS = 4, PRESENT = 5, ABSENT = 6;
+
+        // Collects rows in memory, then writes them as one segment
+        static final class Builder {
+            private final Map<String, Integer> courseIds = new HashMap<>(), noteIds = new HashMap<>();
+            private final List<String> courses = new ArrayList<>(), notes = new ArrayList<>();
+            private int[] day = new int[1024], course = new int[1024], present = new int[1024], absent = new int[1024], note = new int[1024];
+            int rows;
+
+            void add(int epochDay, String courseName, int presentCount, int absentCount, String noteText) {
+                if (rows == day.length) {
+                    int n = rows * 2;
+                    day = Arrays.copyOf(day, n);
+                    course = Arrays.copyOf(course, n);
+                    present = Arrays.copyOf(present, n);
+                    absent = Arrays.copyOf(absent, n);
+                    note = Arrays.copyOf(note, n);
+                }
+                day[rows] = epochDay;
+                course[rows] = id(courseIds, courses, courseName);
+                present[rows] = presentCount;
+                absent[rows] = absentCount;
+                note[rows] = id(noteIds, notes, noteText);
+                rows++;
+            }
+
+            private static int id(Map<String, Integer> ids, List<String> values, String value) {
+                Integer id = ids.get(value);
+                if (id == null) {
+                    id = values.size();
+                    ids.put(value, id);
+                    values.add(value);
+                }
+                return id;
+            }
+
+            // Written and fsynced; the caller renames it into place
+            void write(File file) throws IOException {
+                long[] offsets = new long[7];
+                try (FileOutputStream fos = new FileOutputStream(file);
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    offsets[COURSES] = out.size();
+                    writeDictionary(out, courses);
+                    offsets[NOTES] = out.size();
+                    writeDictionary(out, notes);
+                    offsets[DATES] = out.size();
+                    out.writeInt(day[0]);
+                    for (int i = 1; i < rows; i++) {
+                        int delta = day[i] - day[i - 1];
+                        writeVarint(out, (delta << 1) ^ (delta >> 31));
+                    }
+                    offsets[COURSE_IDS] = out.size();
+                    writePacked(out, course, 0, courses.size() - 1);
+                    offsets[NOTE_IDS] = out.size();
+                    writePacked(out, note, 0, notes.size() - 1);
+                    offsets[PRESENT] = out.size();
+                    writePacked(out, present, min(present), max(present));
+                    offsets[ABSENT] = out.size();
+                    writePacked(out, absent, min(absent), max(absent));
+                    long footer = out.size();
+                    out.writeInt(rows);
+                    out.writeInt(min(day));
+                    out.writeInt(max(day));
+                    out.writeInt(min(present));
+                    out.writeInt(max(present));
+                    out.writeInt(min(absent));
+                    out.writeInt(max(absent));
+                    for (long offset : offsets) out.writeLong(offset);
+                    out.writeLong(footer);
+                    out.writeInt(MAGIC);
+                    out.flush();
+                    if (out.size() < 0) throw new IOException("Segment larger than 2 GB; compact a shorter date range");
+                    fos.getFD().sync();
+                }
+            }
+
+            private int min(int[] values) {
+                int m = values[0];
+                for (int i = 1; i < rows; i++) m = Math.min(m, values[i]);
+                return m;
+            }
+
+            private int max(int[] values) {
+                int m = values[0];
+                for (int i = 1; i < rows; i++) m = Math.max(m, values[i]);
+                return m;
+            }
+
+            private static void writeDictionary(DataOutputStream out, List<String> values) throws IOException {
+                out.writeInt(values.size());
+                for (String value : values) {
+                    byte[] bytes = value.getBytes(Charset.defaultCharset());
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+
+            private static void writeVarint(DataOutputStream out, int value) throws IOException {
+                while ((value & ~0x7F) != 0) {
+                    out.writeByte((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                out.writeByte(value);
+            }
+
+            // min, bit width, then (value - min) packed low bits first into longs
+            private void writePacked(DataOutputStream out, int[] values, int min, int max) throws IOException {
+                int bits = 64 - Long.numberOfLeadingZeros((long) max - min);
+                out.writeInt(min);
+                out.writeByte(bits);
+                if (bits == 0) return;
+                long word = 0;
+                int filled = 0;
+                for (int i = 0; i < rows; i++) {
+                    long x = (long) values[i] - min;
+                    word |= x << filled;
+                    filled += bits;
+                    if (filled >= 64) {
+                        out.writeLong(word);
+                        filled -= 64;
+                        word = filled == 0 ? 0 : x >>> (bits - filled);
+                    }
+                }
+                if (filled > 0) out.writeLong(word);
+            }
+        }
+
+        private final ByteBuffer buf;
+        final int rows, minDay, maxDay, minPresent, maxPresent, minAbsent, maxAbsent;
+        private final long[] offsets = new long[7];
+        private final String[] courses;
+        private final byte[][] courseKeys;
+        private String[] notes; // decoded by the first entries() call; summaries never need them
+
+        Segment(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < 20 || size > Integer.MAX_VALUE) throw new IOException("Not an attendance segment: " + path);
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            int end = buf.limit();
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION || buf.getInt(end - 4) != MAGIC) {
+                throw new IOException("Not a version " + VERSION + " attendance segment: " + path);
+            }
+            ByteBuffer footer = buf.duplicate().position((int) buf.getLong(end - 12));
+            rows = footer.getInt();
+            minDay = footer.getInt();
+            maxDay = footer.getInt();
+            minPresent = footer.getInt();
+            maxPresent = footer.getInt();
+            minAbsent = footer.getInt();
+            maxAbsent = footer.getInt();
+            for (int c = 0; c < offsets.length; c++) offsets[c] = footer.getLong();
+            courseKeys = readDictionary(COURSES);
+            courses = decode(courseKeys);
+        }
+
+        private byte[][] readDictionary(int column) {
+            ByteBuffer in = buf.duplicate().position((int) offsets[column]);
+            byte[][] values = new byte[in.getInt()][];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = new byte[in.getInt()];
+                in.get(values[i]);
+            }
+            return values;
+        }
+
+        private static String[] decode(byte[][] values) {
+            String[] strings = new String[values.length];
+            for (int i = 0; i < values.length; i++) strings[i] = new String(values[i], Charset.defaultCharset());
+            return strings;
+        }
+
+        // Reads a bit-packed column by row index
+        private final class Packed {
+            final int min, bits, base;
+            final long mask;
+
+            Packed(int column) {
+                int at = (int) offsets[column];
+                min = buf.getInt(at);
+                bits = buf.get(at + 4);
+                base = at + 5;
+                mask = bits == 64 ? -1L : (1L << bits) - 1;
+            }
+
+            int get(int row) {
+                if (bits == 0) return min;
+                long bit = (long) row * bits;
+                int word = base + (int) (bit >>> 6) * 8;
+                int shift = (int) (bit & 63);
+                long x = buf.getLong(word) >>> shift;
+                if (shift + bits > 64) x |= buf.getLong(word + 8) << (64 - shift);
+                return (int) ((x & mask) + min);
+            }
+        }
+
+        // Adds this segment's per-course totals; only the course, present and absent columns are read
+        void summarize(CourseTable into) {
+            Packed course = new Packed(COURSE_IDS), present = new Packed(PRESENT), absent = new Packed(ABSENT);
+            int[] p = new int[courses.length], a = new int[courses.length], d = new int[courses.length];
+            for (int row = 0; row < rows; row++) {
+                int c = course.get(row);
+                p[c] += present.get(row);
+                a[c] += absent.get(row);
+                d[c]++;
+            }
+            for (int c = 0; c < courses.length; c++) {
+                if (d[c] == 0) continue;
+                byte[] key = courseKeys[c];
+                int e = into.entry(key, 0, key.length, CourseTable.hash(key, 0, key.length));
+                into.present[e] += p[c];
+                into.absent[e] += a[c];
+                into.days[e] += d[c];
+            }
+        }
+
+        // Rows of course (null for all) dated from..to inclusive (null for open ends, compared as text like
+        // AttendanceIndex does), in the order they were archived
+        Iterator<AttendanceWriter.Entry> entries(String course, String fromDate, String toDate) {
+            int wanted = course == null ? -1 : Arrays.asList(courses).indexOf(course);
+            if ((course != null && wanted < 0) || rows == 0) return Collections.emptyIterator();
+            if (toDate != null && LocalDate.ofEpochDay(minDay).toString().compareTo(toDate) > 0) return Collections.emptyIterator();
+            if (fromDate != null && LocalDate.ofEpochDay(maxDay).toString().compareTo(fromDate) < 0) return Collections.emptyIterator();
+            if (notes == null) notes = decode(readDictionary(NOTES));
+            Packed courseIds = new Packed(COURSE_IDS), noteIds = new Packed(NOTE_IDS);
+            Packed present = new Packed(PRESENT), absent = new Packed(ABSENT);
+            ByteBuffer dates = buf.duplicate().position((int) offsets[DATES]);
+            return new Iterator<AttendanceWriter.Entry>() {
+                private int row;
+                private int day = dates.getInt();
+                private int cachedDay = Integer.MIN_VALUE;
+                private String date;
+                private AttendanceWriter.Entry pending;
+
+                @Override
+                public boolean hasNext() {
+                    while (pending == null && row < rows) {
+                        if (row > 0) {
+                            int zigzag = 0;
+                            for (int shift = 0; ; shift += 7) {
+                                byte b = dates.get();
+                                zigzag |= (b & 0x7F) << shift;
+                                if (b >= 0) break;
+                            }
+                            day += (zigzag >>> 1) ^ -(zigzag & 1);
+                        }
+                        int c = courseIds.get(row);
+                        if (wanted < 0 || c == wanted) {
+                            if (day != cachedDay) {
+                                date = LocalDate.ofEpochDay(day).toString();
+                                cachedDay = day;
+                            }
+                            if ((fromDate == null || date.compareTo(fromDate) >= 0) && (toDate == null || date.compareTo(toDate) <= 0)) {
+                                pending = new AttendanceWriter.Entry(date, courses[c], present.get(row), absent.get(row), notes[noteIds.get(row)]);
+                            }
+                        }
+                        row++;
+                    }
+                    return pending != null;
+                }
+
+                @Override
+                public AttendanceWriter.Entry next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    AttendanceWriter.Entry entry = pending;
+                    pending = null;
+                    return entry;
+                }
+            };
+        }
+    }
+
     public static void main(String[] args) {
         Scanner sc = new Scanner(System.in);
         int choice;
@@ -82,6 +1405,9 @@ class AttendanceLogger {
             System.out.println("2. Read Entries");
             System.out.println("3. Generate Summary");
             System.out.println("4. Exit");
+            System.out.println("5. Import CSV");
+            System.out.println("6. Query Entries");
+            System.out.println("7. Compact Archive");
             System.out.print("Enter choice: ");
             choice = sc.nextInt();
             sc.nextLine();
@@ -110,11 +1436,36 @@ class AttendanceLogger {
                 case 4:
                     System.out.println(" Exiting...");
                     break;
+                case 5:
+                    System.out.print("Enter CSV file (date,course,present,absent[,notes]): ");
+                    importEntries(sc.nextLine());
+                    break;
+                case 6:
+                    System.out.print("Enter course code (blank for all): ");
+                    String queryCourse = sc.nextLine();
+                    System.out.print("Enter from date (YYYY-MM-DD, blank for any): ");
+                    String fromDate = sc.nextLine();
+                    System.out.print("Enter to date (YYYY-MM-DD, blank for any): ");
+                    String toDate = sc.nextLine();
+                    queryEntries(queryCourse.isEmpty() ? null : queryCourse,
+                        fromDate.isEmpty() ? null : fromDate, toDate.isEmpty() ? null : toDate);
+                    break;
+                case 7:
+                    System.out.print("Archive entries up to date (YYYY-MM-DD): ");
+                    compactArchive(sc.nextLine());
+                    break;
                 default:
                     System.out.println(" Invalid choice.");
             }
         } while (choice != 4);
         sc.close();
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.out.println("❌ Error closing file: " + e.getMessage());
+            }
+        }
     }
 }
 
@@ -0,0 +1,24 @@
+package bank;
+
+import bank.MultiThreadedBankSimulator.Account;
+import bank.MultiThreadedBankSimulator.AccountKind;
+import bank.MultiThreadedBankSimulator.AccountRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Accounts for the benchmarks, with balances no benchmark can run down
+final class BenchAccounts {
+    private BenchAccounts() { }
+
+    // Registered, so that they have handles to order locks by
+    static List<Account> create(AccountKind kind, int count) {
+        AccountRegistry registry = new AccountRegistry();
+        List<Account> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String id = String.format("A%04d", i + 1);
+            accounts.add(registry.get(registry.register(id, handle -> kind.create(id, "Bench" + handle, Long.MAX_VALUE / 4))));
+        }
+        return accounts;
+    }
+}
@@ -0,0 +1,99 @@
+package bank;
+
+import bank.MultiThreadedBankSimulator.Options;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+// Runs the JMH benchmarks with the GC profiler (allocation rate and bytes per operation, GC count and time)
+// and compares their mean throughput against a saved baseline, for use as a CI gate:
+//   java -cp target/benchmarks.jar bank.BenchmarkGate [options]
+//   --filter=TEXT                                only benchmarks whose name contains TEXT, e.g. Transfer
+//   --warmup=N --iterations=N --iteration-ms=N   override the benchmarks' own iteration settings
+//   --save-baseline=FILE                         store mean ops/sec per benchmark
+//   --baseline=FILE [--tolerance=PCT]            exit with status 1 if one is slower than baseline by > PCT (10)
+public final class BenchmarkGate {
+    private BenchmarkGate() { }
+
+    public static void main(String[] args) throws Exception {
+        Options opts = Options.parse(args);
+        double tolerance = opts.getInt("tolerance", 10) / 100.0;
+
+        // Filtered by name before anything runs; JMH only sets up the benchmarks it includes
+        ChainedOptionsBuilder jmh = new OptionsBuilder()
+            .include(opts.has("filter") ? Pattern.quote(opts.get("filter", "")) : ".*")
+            .addProfiler(GCProfiler.class);
+        if (opts.has("warmup")) jmh.warmupIterations(opts.getInt("warmup", 2));
+        if (opts.has("iterations")) jmh.measurementIterations(opts.getInt("iterations", 5));
+        if (opts.has("iteration-ms")) {
+            TimeValue length = TimeValue.milliseconds(opts.getPositiveInt("iteration-ms", 500));
+            jmh.warmupTime(length).measurementTime(length);
+        }
+
+        Properties baseline = new Properties();
+        if (opts.has("baseline")) {
+            try (Reader in = Files.newBufferedReader(Paths.get(opts.get("baseline", "")))) {
+                baseline.load(in);
+            }
+        }
+        Properties results = new Properties();
+        boolean passed = true;
+
+        Map<String, RunResult> byName = new TreeMap<>();
+        for (RunResult run : new Runner(jmh.build()).run()) byName.put(name(run), run);
+
+        System.out.printf("%n%-50s %14s %10s  %s%n", "benchmark", "ops/sec", "B/op", "vs baseline");
+        for (Map.Entry<String, RunResult> e : byName.entrySet()) {
+            Result<?> primary = e.getValue().getPrimaryResult();
+            Result<?> alloc = e.getValue().getSecondaryResults().get("gc.alloc.rate.norm");
+            double mean = primary.getScore();
+            String verdict = "";
+            if (baseline.getProperty(e.getKey()) != null) {
+                double before = Double.parseDouble(baseline.getProperty(e.getKey()));
+                double change = (mean - before) / before;
+                boolean regressed = change < -tolerance;
+                passed &= !regressed;
+                verdict = String.format(Locale.ROOT, "%+.1f%%%s", change * 100, regressed ? "  REGRESSION" : "");
+            }
+            System.out.printf("%-50s %14.0f %10.1f  %s%n", e.getKey(), mean,
+                alloc == null ? Double.NaN : alloc.getScore(), verdict);
+            results.setProperty(e.getKey(), String.format(Locale.ROOT, "%.0f", mean));
+        }
+        if (opts.has("save-baseline")) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(opts.get("save-baseline", "")))) {
+                results.store(out, "MultiThreadedBankSimulator benchmark baseline (mean ops/sec)");
+            }
+        }
+        if (!passed) {
+            System.out.println("Performance regression against baseline.");
+            System.exit(1);
+        }
+    }
+
+    // e.g. TransferBenchmarks.allThreads:accounts=64,kind=LOCKING
+    private static String name(RunResult run) {
+        String benchmark = run.getParams().getBenchmark();
+        StringBuilder name = new StringBuilder(benchmark.substring(benchmark.indexOf('.') + 1));
+        String separator = ":";
+        for (String key : new TreeSet<>(run.getParams().getParamsKeys())) {
+            name.append(separator).append(key).append('=').append(run.getParams().getParam(key));
+            separator = ",";
+        }
+        return name.toString();
+    }
+}
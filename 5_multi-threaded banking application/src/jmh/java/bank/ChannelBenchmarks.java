@@ -0,0 +1,56 @@
+package bank;
+
+import bank.MultiThreadedBankSimulator.QueueTransactionChannel;
+import bank.MultiThreadedBankSimulator.Transaction;
+import bank.MultiThreadedBankSimulator.TransactionChannel;
+import bank.MultiThreadedBankSimulator.TransactionRingBuffer;
+import bank.MultiThreadedBankSimulator.WaitStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Cost of handing a transaction to the logger from every thread, with a consumer draining concurrently
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class ChannelBenchmarks {
+    @Param({ "queue", "ring-spin", "ring-yield", "ring-park" })
+    public String channel;
+
+    TransactionChannel target;
+    final AtomicBoolean draining = new AtomicBoolean();
+    Thread consumer;
+
+    @Setup
+    public void setUp() {
+        target = channel.equals("queue")
+            ? new QueueTransactionChannel(1 << 16)
+            : new TransactionRingBuffer(1 << 16, WaitStrategy.parse(channel.substring("ring-".length())));
+        draining.set(true);
+        consumer = new Thread(() -> {
+            try {
+                while (draining.get() || !target.isEmpty()) target.drain(tx -> { }, 4096, 10);
+            } catch (IOException | InterruptedException ignored) {
+                // benchmark consumer: nothing to report
+            }
+        }, "bench-consumer");
+        consumer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        draining.set(false);
+        consumer.join();
+    }
+
+    @Benchmark
+    public void enqueue() {
+        target.publish(Transaction.Type.DEPOSIT, "EXTERNAL", "A001", 100, true, "ATM deposit");
+    }
+}
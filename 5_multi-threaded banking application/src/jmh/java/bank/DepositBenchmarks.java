@@ -0,0 +1,53 @@
+package bank;
+
+import bank.MultiThreadedBankSimulator.Account;
+import bank.MultiThreadedBankSimulator.AccountKind;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Account.deposit on every thread at once: into the thread's own account, and all into one shared account
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class DepositBenchmarks {
+    @Param({ "LOCKING", "ATOMIC", "STRIPED" })
+    public String kind;
+
+    List<Account> accounts;
+    Account shared;
+    final AtomicInteger nextAccount = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        accounts = BenchAccounts.create(AccountKind.parse(kind), threads + 1);
+        shared = accounts.get(threads);
+    }
+
+    @State(Scope.Thread)
+    public static class OwnAccount {
+        Account account;
+
+        @Setup
+        public void setUp(DepositBenchmarks bench) {
+            account = bench.accounts.get(bench.nextAccount.getAndIncrement() % (bench.accounts.size() - 1));
+        }
+    }
+
+    @Benchmark
+    public void uncontended(OwnAccount own) {
+        own.account.deposit(100);
+    }
+
+    @Benchmark
+    public void contended() {
+        shared.deposit(100);
+    }
+}
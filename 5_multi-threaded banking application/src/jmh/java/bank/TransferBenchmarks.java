@@ -0,0 +1,51 @@
+package bank;
+
+import bank.MultiThreadedBankSimulator.Account;
+import bank.MultiThreadedBankSimulator.AccountKind;
+import bank.MultiThreadedBankSimulator.InsufficientFundsException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Account.transferTo between two distinct random accounts; fewer accounts means more lock collisions
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmarks {
+    @Param({ "LOCKING", "ATOMIC", "STRIPED" })
+    public String kind;
+
+    @Param({ "2", "64", "4096" })
+    public int accounts;
+
+    List<Account> all;
+
+    @Setup
+    public void setUp() {
+        all = BenchAccounts.create(AccountKind.parse(kind), accounts);
+    }
+
+    private void transfer() throws InsufficientFundsException {
+        ThreadLocalRandom rng = ThreadLocalRandom.current();
+        int a = rng.nextInt(accounts);
+        int b = rng.nextInt(accounts - 1);
+        all.get(a).transferTo(all.get(b >= a ? b + 1 : b), 100);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void singleThread() throws InsufficientFundsException {
+        transfer();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void allThreads() throws InsufficientFundsException {
+        transfer();
+    }
+}
@@ -0,0 +1,5082 @@
+// File: MultiThreadedBankSimulator.java
+package bank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * MultiThreadedBankSimulator
+ * Single-file simulation demonstrating:
+ * - ExecutorService, Callable/Runnable
+ * - ReentrantLock per Account, ordered lock acquisition to avoid deadlocks
+ * - Lock-free AtomicLong accounts as an alternative (--account=atomic)
+ * - Striped accounts with lock-free credits for deposit-heavy use (--account=striped)
+ * - Sharded single-writer ledger with two-phase cross-shard transfers (--mode=sharded)
+ * - Off-heap account table, optionally memory-mapped and reloadable (--mode=offheap, --table=DIR)
+ * - ScheduledExecutorService for periodic interest
+ * - Lock-free MPSC ring buffer (or LinkedBlockingQueue) feeding the transaction logger
+ * - Batched, group-committed binary transaction log with a text renderer (--log-format=binary)
+ * - Netted batch settlement holding each touched account once (--batch-size)
+ * - Epoch-based consistent balance snapshots that do not block transfers (--audit-interval-ms)
+ * - Write-ahead log of balance changes with snapshots and parallel crash recovery (--wal=DIR)
+ * - Sliding-window fraud/velocity rules on the logged transaction stream (--fraud)
+ * - Parallel replay of transaction logs against recorded balances (--replay, --record-balances)
+ * - Graceful shutdown and metrics
+ *
+ * Compile: mvn package           (JMH benchmarks: java -jar target/benchmarks.jar, see src/jmh)
+ * Run:     java -cp target/classes bank.MultiThreadedBankSimulator
+ */
+public class MultiThreadedBankSimulator {
+
+    /* ---------- Exceptions ---------- */
+    static class InsufficientFundsException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InsufficientFundsException(String msg) { super(msg); }
+    }
+
+    /* ---------- Domain classes ---------- */
+    // Lazy interest: a tick only advances the epoch (and records that tick's rate). Each account remembers
+    // the epoch its balance is accrued up to and catches up on its next access, or when the background
+    // sweep reaches it, compounding one rounded step per missed tick exactly as the eager sweep did.
+    static final class InterestSchedule {
+        // for accounts that never earn interest (benchmarks, replay)
+        static final InterestSchedule NONE = new InterestSchedule();
+
+        private volatile double[] rates = new double[0]; // rates[e] is the rate applied by tick e + 1
+        private volatile int epoch;                      // ticks so far; written after rates
+        // interest materialized since the last tick, reported in the tick's aggregate log record
+        private final LongAdder accruedCents = new LongAdder();
+        private final LongAdder accruedAccounts = new LongAdder();
+
+        int epoch() { return epoch; }
+
+        // Called by the scheduler thread only; O(1) regardless of the number of accounts
+        synchronized int tick(double rate) {
+            double[] next = Arrays.copyOf(rates, epoch + 1);
+            next[epoch] = rate;
+            rates = next;
+            return ++epoch;
+        }
+
+        // Balance after the ticks in [fromEpoch, toEpoch); pure, so CAS-based callers can retry it
+        long compound(long balance, int fromEpoch, int toEpoch) {
+            double[] r = rates;
+            for (int e = fromEpoch; e < toEpoch; e++) {
+                balance += Math.round(balance * r[e]);
+            }
+            return balance;
+        }
+
+        // Notified of every materialized accrual, e.g. so a DurableLedger can log it; index is the ledger index
+        interface AccrualListener {
+            void accrued(int index, long interestCents);
+        }
+
+        private volatile AccrualListener listener;
+
+        void setListener(AccrualListener listener) { this.listener = listener; }
+
+        void recordAccrual(int index, long interestCents) {
+            accruedCents.add(interestCents);
+            accruedAccounts.increment();
+            AccrualListener l = listener;
+            if (l != null) l.accrued(index, interestCents);
+        }
+
+        // Returns {cents, accounts} materialized since the previous call
+        long[] drainAccrued() {
+            return new long[] { accruedCents.sumThenReset(), accruedAccounts.sumThenReset() };
+        }
+    }
+
+    static abstract class Account implements Comparable<Account> {
+        private final String accountId;
+        private final String ownerName;
+        protected final InterestSchedule interest;
+        int handle = -1; // dense id from AccountRegistry; set once, before the account is published
+
+        protected Account(String accountId, String ownerName, InterestSchedule interest) {
+            this.accountId = accountId;
+            this.ownerName = ownerName;
+            this.interest = interest;
+        }
+
+        public String getAccountId() { return accountId; }
+        public String getOwnerName() { return ownerName; }
+        int handle() { return handle; }
+
+        // deposit and withdraw must be thread-safe
+        public abstract void deposit(long amountCents);
+        public abstract void withdraw(long amountCents) throws InsufficientFundsException;
+        public abstract long getBalance();
+
+        // transferTo moves amount from this -> target atomically: either both sides change or neither does
+        public abstract void transferTo(Account target, long amountCents) throws InsufficientFundsException;
+
+        // accrueInterest brings the balance up to the current interest epoch and returns the interest credited
+        public abstract long accrueInterest();
+
+        // Balance as of the end of snapshot epoch cutEpoch; only valid inside SnapshotEpochs.cut. Lock-free,
+        // and does not materialize interest.
+        abstract long balanceAt(int cutEpoch);
+
+        // Lock order: by registry handle, an int compare instead of a String one
+        @Override
+        public int compareTo(Account o) {
+            return Integer.compare(handle, o.handle);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Account[id=%s, owner=%s, balance=%.2f]", accountId, ownerName, getBalance()/100.0);
+        }
+    }
+
+    // Original implementation: every operation takes the per-account ReentrantLock
+    // Snapshots: writes happen under the lock and register with SnapshotEpochs while holding it, so each
+    // account sees snapshot epochs in order. The first write in a new epoch keeps the old balance as the
+    // pre-image that a cut of the previous epoch reads instead of the live balance.
+    // Contention: every acquisition feeds the account's lock-wait average to ContentionManager. A hot account
+    // switches deposits to flat combining: the deposit is queued, and whichever thread holds the lock next
+    // applies all queued deposits in one critical section, so a convoy of depositors becomes one lock pass.
+    static class LockingAccount extends Account {
+        private volatile long balance; // in cents to avoid floating issues; written under lock
+        private int interestEpoch; // guarded by lock, like balance
+        private volatile int writeEpoch; // snapshot epoch of the last write, published before the balance
+        private long cutBalance;         // balance at the end of the epoch before writeEpoch
+        private final ReentrantLock lock = new ReentrantLock();
+        private double waitEwmaNanos;    // guarded by lock
+        private volatile long lastWaitedAt; // nanoTime of the last acquisition that had to wait
+        private volatile boolean hot;
+        private volatile Queue<PendingDeposit> pendingDeposits; // created when first hot, then kept
+
+        private static final class PendingDeposit {
+            final long amountCents;
+            final long queuedNanos = System.nanoTime();
+            final Thread waiter = Thread.currentThread();
+            volatile boolean done;
+
+            PendingDeposit(long amountCents) { this.amountCents = amountCents; }
+        }
+
+        public LockingAccount(String accountId, String ownerName, long initialBalanceCents, InterestSchedule interest) {
+            super(accountId, ownerName, interest);
+            this.balance = initialBalanceCents;
+            this.interestEpoch = interest.epoch();
+        }
+
+        // Must hold lock
+        private void setBalance(long newBalance, int epoch) {
+            if (epoch != writeEpoch) {
+                cutBalance = balance;
+                writeEpoch = epoch;
+            }
+            balance = newBalance;
+        }
+
+        // Must hold lock. Catches the balance up on any interest ticks since the last access.
+        private long accrueLocked(int epoch) {
+            int current = interest.epoch();
+            if (interestEpoch == current) return 0;
+            long before = balance;
+            setBalance(interest.compound(before, interestEpoch, current), epoch);
+            interestEpoch = current;
+            interest.recordAccrual(handle, balance - before);
+            return balance - before;
+        }
+
+        // Takes the lock and feeds the wait into the hot-account statistics
+        private void lockTracked(boolean countConflict) {
+            if (lock.tryLock()) {
+                recordWait(0);
+                return;
+            }
+            if (countConflict) ContentionStats.lockConflicts.increment();
+            long start = System.nanoTime();
+            lock.lock();
+            recordWait(System.nanoTime() - start);
+        }
+
+        // Must hold lock
+        private void recordWait(long waitNanos) {
+            if (waitNanos > 0) lastWaitedAt = System.nanoTime();
+            waitEwmaNanos += (waitNanos - waitEwmaNanos) * ContentionManager.EWMA_WEIGHT;
+            if (!hot && waitEwmaNanos > ContentionManager.hotWaitNanos) {
+                if (pendingDeposits == null) pendingDeposits = new ConcurrentLinkedQueue<>();
+                hot = true;
+                ContentionManager.hot.add(this);
+            } else if (hot && waitEwmaNanos < ContentionManager.hotWaitNanos / 4) {
+                hot = false; // queued deposits are still combined by the next lock holder
+                ContentionManager.hot.remove(this);
+            }
+        }
+
+        double waitEwmaNanos() { return waitEwmaNanos; } // racy read, for reporting only
+        long lastWaitedAt() { return lastWaitedAt; }
+
+        // Must hold lock. Applies queued deposits (a bounded number per pass, so the holder cannot be kept
+        // here forever) and wakes their threads; the time the oldest one queued counts as lock wait.
+        private void combineLocked(int epoch) {
+            Queue<PendingDeposit> queue = pendingDeposits;
+            if (queue == null || queue.isEmpty()) return;
+            long oldest = Long.MAX_VALUE;
+            int combined = 0;
+            PendingDeposit request;
+            while (combined < ContentionManager.MAX_COMBINE && (request = queue.poll()) != null) {
+                setBalance(balance + request.amountCents, epoch);
+                oldest = Math.min(oldest, request.queuedNanos);
+                request.done = true;
+                LockSupport.unpark(request.waiter);
+                combined++;
+            }
+            ContentionManager.combinedDeposits.add(combined);
+            ContentionManager.combinerPasses.increment();
+            recordWait(System.nanoTime() - oldest);
+        }
+
+        // Hot path: queue the deposit, then either become the combiner or wait for one. The deposit does not
+        // return before it is applied, and it takes the combiner's snapshot epoch.
+        private void depositCombined(long amountCents) {
+            PendingDeposit request = new PendingDeposit(amountCents);
+            pendingDeposits.add(request);
+            while (!request.done) {
+                if (lock.tryLock()) {
+                    int epoch = SnapshotEpochs.enter();
+                    try {
+                        accrueLocked(epoch);
+                        combineLocked(epoch);
+                    } finally {
+                        SnapshotEpochs.exit(epoch);
+                        lock.unlock();
+                    }
+                } else {
+                    LockSupport.parkNanos(this, ContentionManager.COMBINE_PARK_NANOS);
+                }
+            }
+        }
+
+        @Override
+        public void deposit(long amountCents) {
+            if (hot && ContentionManager.enabled) {
+                depositCombined(amountCents);
+                return;
+            }
+            long requested = BankMetrics.lockRequested();
+            lockTracked(false);
+            long acquired = BankMetrics.lockAcquired(OpType.DEPOSIT, requested);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                accrueLocked(epoch);
+                combineLocked(epoch);
+                setBalance(balance + amountCents, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+                lock.unlock();
+                BankMetrics.lockReleased(OpType.DEPOSIT, acquired);
+            }
+        }
+
+        @Override
+        public void withdraw(long amountCents) throws InsufficientFundsException {
+            long requested = BankMetrics.lockRequested();
+            lockTracked(false);
+            long acquired = BankMetrics.lockAcquired(OpType.WITHDRAW, requested);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                accrueLocked(epoch);
+                combineLocked(epoch);
+                if (balance < amountCents) {
+                    throw new InsufficientFundsException("Account " + getAccountId() + " has insufficient funds.");
+                }
+                setBalance(balance - amountCents, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+                lock.unlock();
+                BankMetrics.lockReleased(OpType.WITHDRAW, acquired);
+            }
+        }
+
+        @Override
+        public long getBalance() {
+            lockTracked(false);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                accrueLocked(epoch);
+                combineLocked(epoch);
+                return balance;
+            } finally {
+                SnapshotEpochs.exit(epoch);
+                lock.unlock();
+            }
+        }
+
+        // A writer publishes writeEpoch before the balance, so an unchanged writeEpoch around the
+        // balance read means the value read belongs to the cut
+        @Override
+        long balanceAt(int cutEpoch) {
+            while (true) {
+                int written = writeEpoch;
+                if (written > cutEpoch) return cutBalance;
+                long b = balance;
+                if (writeEpoch == written) return b;
+            }
+        }
+
+        public ReentrantLock getLock() { return lock; }
+
+        // transferTo attempts to transfer amount from this -> target
+        // Locks are always acquired in handle order, so no cycle of waiting transfers can form
+        // and a plain blocking lock() is deadlock-free; no timeout, no spurious failure.
+        @Override
+        public void transferTo(Account other, long amountCents) throws InsufficientFundsException {
+            LockingAccount target = (LockingAccount) other;
+            LockingAccount first = this.compareTo(target) <= 0 ? this : target;
+            LockingAccount second = this.compareTo(target) <= 0 ? target : this;
+
+            long requested = BankMetrics.lockRequested();
+            first.lockTracked(true);
+            try {
+                if (second != first) second.lockTracked(true);
+                long acquired = BankMetrics.lockAcquired(OpType.TRANSFER, requested);
+                int epoch = SnapshotEpochs.enter();
+                try {
+                    this.accrueLocked(epoch);
+                    target.accrueLocked(epoch);
+                    this.combineLocked(epoch);
+                    target.combineLocked(epoch);
+                    // proceed transfer: withdraw from source, deposit to target
+                    if (this.balance < amountCents) {
+                        throw new InsufficientFundsException("Insufficient funds in " + getAccountId());
+                    }
+                    this.setBalance(this.balance - amountCents, epoch);
+                    target.setBalance(target.balance + amountCents, epoch);
+                } finally {
+                    SnapshotEpochs.exit(epoch);
+                    if (second != first) second.lock.unlock();
+                    BankMetrics.lockReleased(OpType.TRANSFER, acquired);
+                }
+            } finally {
+                first.lock.unlock();
+            }
+        }
+
+        // Batch settlement: each touched account is locked exactly once, in the same handle order transferTo
+        // uses, so batches and single transfers cannot deadlock. touched[k] is account netting.accounts[k].
+        static BatchResult settle(LockingAccount[] touched, BatchNetting netting) {
+            LockingAccount[] ordered = touched.clone();
+            Arrays.sort(ordered);
+            long requested = BankMetrics.lockRequested();
+            int locked = 0;
+            try {
+                for (LockingAccount account : ordered) {
+                    account.lockTracked(true);
+                    locked++;
+                }
+                long acquired = BankMetrics.lockAcquired(OpType.BATCH, requested);
+                int epoch = SnapshotEpochs.enter();
+                try {
+                    long[] balances = new long[touched.length];
+                    for (int k = 0; k < touched.length; k++) {
+                        touched[k].accrueLocked(epoch);
+                        touched[k].combineLocked(epoch);
+                        balances[k] = touched[k].balance;
+                    }
+                    BatchResult result = netting.evaluate(balances);
+                    for (int k = 0; k < touched.length; k++) {
+                        if (result.netCents[k] != 0) touched[k].setBalance(balances[k] + result.netCents[k], epoch);
+                    }
+                    return result;
+                } finally {
+                    SnapshotEpochs.exit(epoch);
+                    BankMetrics.lockReleased(OpType.BATCH, acquired);
+                }
+            } finally {
+                for (int k = locked - 1; k >= 0; k--) ordered[k].lock.unlock();
+            }
+        }
+
+        @Override
+        public long accrueInterest() {
+            // Racy read to spare the sweep a lock on accounts already brought up to date by traffic;
+            // epochs only grow, so seeing the current one means no ticks are missing.
+            if (interestEpoch == interest.epoch()) return 0;
+            long requested = BankMetrics.lockRequested();
+            lockTracked(false);
+            long acquired = BankMetrics.lockAcquired(OpType.INTEREST, requested);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                long accrued = accrueLocked(epoch);
+                combineLocked(epoch);
+                return accrued;
+            } finally {
+                SnapshotEpochs.exit(epoch);
+                lock.unlock();
+                BankMetrics.lockReleased(OpType.INTEREST, acquired);
+            }
+        }
+    }
+
+    // Lock-free variant: the account's whole state is an immutable State replaced by CAS, so one CAS covers
+    // the balance, the interest catch-up and the snapshot pre-image together (at the cost of one small
+    // allocation per write). A transfer debits the source with a funds-checked CAS and then credits the
+    // target. The credit cannot fail, so a transfer either moves the whole amount or leaves both balances
+    // untouched; only a reader summing getBalance() mid-transfer can see the amount "in flight".
+    // Snapshots: the transfer registers one epoch for both writes. Unlike LockingAccount, a write of the
+    // older epoch can land after a newer one here; it is then folded into the pre-image as well.
+    static class AtomicAccount extends Account {
+        private static final long INSUFFICIENT_FUNDS = Long.MIN_VALUE;
+
+        private static final class State {
+            final long balance;
+            final int interestEpoch;
+            final int writeEpoch;  // snapshot epoch of the last write
+            final long cutBalance; // balance at the end of the epoch before writeEpoch
+
+            State(long balance, int interestEpoch, int writeEpoch, long cutBalance) {
+                this.balance = balance;
+                this.interestEpoch = interestEpoch;
+                this.writeEpoch = writeEpoch;
+                this.cutBalance = cutBalance;
+            }
+
+            State next(long newBalance, int newInterestEpoch, int epoch) {
+                if (epoch > writeEpoch) return new State(newBalance, newInterestEpoch, epoch, balance);
+                long cut = epoch < writeEpoch ? cutBalance + (newBalance - balance) : cutBalance;
+                return new State(newBalance, newInterestEpoch, writeEpoch, cut);
+            }
+        }
+
+        private final AtomicReference<State> state;
+
+        public AtomicAccount(String accountId, String ownerName, long initialBalanceCents, InterestSchedule interest) {
+            super(accountId, ownerName, interest);
+            this.state = new AtomicReference<>(new State(initialBalanceCents, interest.epoch(), 0, initialBalanceCents));
+        }
+
+        // Catches up on interest and adds delta in one CAS. Returns the interest accrued, or
+        // INSUFFICIENT_FUNDS (changing nothing) if the balance would go negative.
+        private long update(long delta, int epoch) {
+            while (true) {
+                State s = state.get();
+                int current = interest.epoch();
+                long accrued = interest.compound(s.balance, s.interestEpoch, current);
+                if (accrued + delta < 0) {
+                    return INSUFFICIENT_FUNDS;
+                }
+                if (state.compareAndSet(s, s.next(accrued + delta, current, epoch))) {
+                    if (current != s.interestEpoch) interest.recordAccrual(handle, accrued - s.balance);
+                    return accrued - s.balance;
+                }
+                ContentionStats.casRetries.increment();
+            }
+        }
+
+        @Override
+        public void deposit(long amountCents) {
+            int epoch = SnapshotEpochs.enter();
+            try {
+                update(amountCents, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        public void withdraw(long amountCents) throws InsufficientFundsException {
+            int epoch = SnapshotEpochs.enter();
+            try {
+                if (update(-amountCents, epoch) == INSUFFICIENT_FUNDS) {
+                    throw new InsufficientFundsException("Account " + getAccountId() + " has insufficient funds.");
+                }
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        public long getBalance() {
+            accrueInterest();
+            return state.get().balance;
+        }
+
+        @Override
+        public void transferTo(Account other, long amountCents) throws InsufficientFundsException {
+            AtomicAccount target = (AtomicAccount) other;
+            int epoch = SnapshotEpochs.enter();
+            try {
+                if (update(-amountCents, epoch) == INSUFFICIENT_FUNDS) {
+                    throw new InsufficientFundsException("Insufficient funds in " + getAccountId());
+                }
+                target.update(amountCents, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        public long accrueInterest() {
+            if (state.get().interestEpoch == interest.epoch()) return 0;
+            int epoch = SnapshotEpochs.enter();
+            try {
+                return update(0, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        long balanceAt(int cutEpoch) {
+            State s = state.get();
+            return s.writeEpoch > cutEpoch ? s.cutBalance : s.balance;
+        }
+    }
+
+    // Deposit-heavy variant (--account=striped), for merchant-style accounts. Credits add lock-free into
+    // per-stripe cells, like LongAdder; only debits take the lock. A debit spends the folded balance (base)
+    // first and, if that is short, folds every cell into base and checks again, so funds are always
+    // checked against everything credited so far and never go negative.
+    // Snapshots: the cells come in two sets, each owned by one snapshot epoch (cellsEpoch). A credit whose
+    // set still holds an older epoch's credits folds them into base first, under the lock; that happens at
+    // most once per two cuts. Everything that moves money between base and cells runs under the lock
+    // inside a version bump, so balanceAt can read base and cells together seqlock-style. Debits register
+    // their epoch while holding the lock, as LockingAccount does, so no set they fold belongs to a later
+    // epoch and a debit never spends money the cut will not show.
+    // Interest: a credit that finds interest due takes the lock once to materialize it first.
+    static class StripedAccount extends Account {
+        private static final int STRIPES =
+            Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1));
+        private static final int PAD = 8; // one cell per 64-byte cache line
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final AtomicLongArray[] cells = {
+            new AtomicLongArray(STRIPES * PAD), new AtomicLongArray(STRIPES * PAD) };
+        private final AtomicIntegerArray cellsEpoch = new AtomicIntegerArray(2); // written under lock
+        private volatile long base;          // written under lock
+        private volatile int writeEpoch;     // snapshot epoch of the last write to base
+        private long cutBalance;             // balance at the end of the epoch before writeEpoch
+        private volatile int version;        // odd while a locked section is moving money
+        private volatile int interestEpoch;  // written under lock
+
+        public StripedAccount(String accountId, String ownerName, long initialBalanceCents, InterestSchedule interest) {
+            super(accountId, ownerName, interest);
+            this.base = initialBalanceCents;
+            this.interestEpoch = interest.epoch();
+        }
+
+        private static int stripe() {
+            long id = Thread.currentThread().getId();
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & (STRIPES - 1);
+        }
+
+        private long sum(int set) {
+            long total = 0;
+            for (int s = 0; s < STRIPES; s++) total += cells[set].get(s * PAD);
+            return total;
+        }
+
+        // Must hold lock, inside beginWrite/endWrite. A write tagged with an epoch older than the last one
+        // (a debit registered before a newer writer got the lock, or old credits being folded) belongs
+        // to the earlier cut as well, so it is applied to the pre-image too.
+        private void write(long newBase, int epoch) {
+            if (epoch > writeEpoch) {
+                cutBalance = base;
+                writeEpoch = epoch;
+            } else if (epoch < writeEpoch) {
+                cutBalance += newBase - base;
+            }
+            base = newBase;
+        }
+
+        private void beginWrite() { version++; }
+        private void endWrite() { version++; }
+
+        // Must hold lock, inside beginWrite/endWrite. Moves one set of cells into base, tagged with the
+        // epoch that owns it; concurrent credits to that set land in the zeroed cells and stay there.
+        private void foldSet(int set) {
+            long total = 0;
+            for (int s = 0; s < STRIPES; s++) total += cells[set].getAndSet(s * PAD, 0);
+            if (total != 0) write(base + total, cellsEpoch.get(set));
+        }
+
+        // Older set first, so the pre-image sees the credits in epoch order
+        private void foldAll() {
+            int older = cellsEpoch.get(0) <= cellsEpoch.get(1) ? 0 : 1;
+            foldSet(older);
+            foldSet(1 - older);
+        }
+
+        // Must hold lock, inside beginWrite/endWrite. Due interest may be materialized in any later epoch, so
+        // a credit registered before a newer write tags it with that write's epoch rather than its own.
+        private long accrueLocked(int epoch) {
+            int current = interest.epoch();
+            if (interestEpoch == current) return 0;
+            foldAll();
+            long before = base;
+            write(interest.compound(before, interestEpoch, current), Math.max(epoch, writeEpoch));
+            interestEpoch = current;
+            interest.recordAccrual(handle, base - before);
+            return base - before;
+        }
+
+        // Lock-free unless interest is due or this epoch's set still holds older credits
+        private void credit(long amountCents, int epoch) {
+            int set = epoch & 1;
+            if (cellsEpoch.get(set) != epoch || interestEpoch != interest.epoch()) {
+                lock.lock();
+                beginWrite();
+                try {
+                    accrueLocked(epoch);
+                    if (cellsEpoch.get(set) != epoch) {
+                        foldSet(set);
+                        cellsEpoch.set(set, epoch);
+                    }
+                } finally {
+                    endWrite();
+                    lock.unlock();
+                }
+            }
+            cells[set].getAndAdd(stripe() * PAD, amountCents);
+        }
+
+        // Returns the epoch the debit registered in, still held for the caller to exit, or 0 if funds are short
+        private int debit(long amountCents, OpType op) {
+            long requested = BankMetrics.lockRequested();
+            lock.lock();
+            long acquired = BankMetrics.lockAcquired(op, requested);
+            int epoch = SnapshotEpochs.enter();
+            boolean debited = false;
+            beginWrite();
+            try {
+                accrueLocked(epoch);
+                if (base < amountCents) {
+                    foldAll();
+                    if (base < amountCents) return 0;
+                }
+                write(base - amountCents, epoch);
+                debited = true;
+                return epoch;
+            } finally {
+                endWrite();
+                if (!debited) SnapshotEpochs.exit(epoch);
+                lock.unlock();
+                BankMetrics.lockReleased(op, acquired);
+            }
+        }
+
+        @Override
+        public void deposit(long amountCents) {
+            int epoch = SnapshotEpochs.enter();
+            try {
+                credit(amountCents, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        public void withdraw(long amountCents) throws InsufficientFundsException {
+            int epoch = debit(amountCents, OpType.WITHDRAW);
+            if (epoch == 0) {
+                throw new InsufficientFundsException("Account " + getAccountId() + " has insufficient funds.");
+            }
+            SnapshotEpochs.exit(epoch);
+        }
+
+        // Folds under the lock, so the result is exact; deposits are not held up by it
+        @Override
+        public long getBalance() {
+            lock.lock();
+            int epoch = SnapshotEpochs.enter();
+            beginWrite();
+            try {
+                accrueLocked(epoch);
+                foldAll();
+                return base;
+            } finally {
+                endWrite();
+                SnapshotEpochs.exit(epoch);
+                lock.unlock();
+            }
+        }
+
+        // Debit under the source's lock, then a lock-free credit; both in one snapshot epoch
+        @Override
+        public void transferTo(Account other, long amountCents) throws InsufficientFundsException {
+            StripedAccount target = (StripedAccount) other;
+            int epoch = debit(amountCents, OpType.TRANSFER);
+            if (epoch == 0) throw new InsufficientFundsException("Insufficient funds in " + getAccountId());
+            try {
+                target.credit(amountCents, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        public long accrueInterest() {
+            if (interestEpoch == interest.epoch()) return 0;
+            lock.lock();
+            int epoch = SnapshotEpochs.enter();
+            beginWrite();
+            try {
+                return accrueLocked(epoch);
+            } finally {
+                endWrite();
+                SnapshotEpochs.exit(epoch);
+                lock.unlock();
+            }
+        }
+
+        // Credits of the cut's epoch are complete (the cut drained them) and later ones go to a set owned
+        // by a later epoch, so only the version check is needed to line base and cells up
+        @Override
+        long balanceAt(int cutEpoch) {
+            while (true) {
+                int v = version;
+                if ((v & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                long total = writeEpoch > cutEpoch ? cutBalance : base;
+                for (int set = 0; set < 2; set++) {
+                    if (cellsEpoch.get(set) <= cutEpoch) total += sum(set);
+                }
+                if (version == v) return total;
+            }
+        }
+    }
+
+    // Contention metrics for the transfer engine, printed in the final summary
+    static class ContentionStats {
+        // transfers that found one of their two locks held and had to wait
+        static final LongAdder lockConflicts = new LongAdder();
+        // CAS attempts on an AtomicAccount that lost a race and were retried
+        static final LongAdder casRetries = new LongAdder();
+    }
+
+    // Hot-account detection for LockingAccount. Each account keeps an exponentially weighted average of how
+    // long acquiring its lock waited (updated while holding it); above hotWaitNanos the account is hot and
+    // deposits switch to flat combining, below a quarter of it the account cools down again.
+    // --hot-wait-us=N sets the threshold, --contention=off disables the switch (detection still runs).
+    static final class ContentionManager {
+        static final double EWMA_WEIGHT = 1.0 / 32;
+        static final int MAX_COMBINE = 256;
+        static final long COMBINE_PARK_NANOS = 50_000;
+        static volatile long hotWaitNanos = 20_000;
+        static volatile boolean enabled = true;
+
+        static final Set<LockingAccount> hot = ConcurrentHashMap.newKeySet();
+        static final LongAdder combinedDeposits = new LongAdder();
+        static final LongAdder combinerPasses = new LongAdder();
+
+        // Hottest first. An account only cools down when it is next locked, so one that has gone quiet
+        // is left out of the list after a second without waits.
+        static List<LockingAccount> hotAccounts() {
+            long now = System.nanoTime();
+            List<LockingAccount> list = new ArrayList<>();
+            for (LockingAccount account : hot) {
+                if (now - account.lastWaitedAt() < TimeUnit.SECONDS.toNanos(1)) list.add(account);
+            }
+            list.sort(Comparator.comparingDouble(LockingAccount::waitEwmaNanos).reversed());
+            return list;
+        }
+
+        static String describe(int limit) {
+            List<LockingAccount> list = hotAccounts();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < Math.min(limit, list.size()); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(String.format(Locale.ROOT, "%s (%.1fus)", list.get(i).getAccountId(), list.get(i).waitEwmaNanos() / 1e3));
+            }
+            if (list.size() > limit) sb.append(", ... ").append(list.size() - limit).append(" more");
+            return list.isEmpty() ? "none" : sb.toString();
+        }
+    }
+
+    // Selected at startup with --account=locking|atomic|striped
+    enum AccountKind {
+        LOCKING, ATOMIC, STRIPED;
+
+        Account create(String accountId, String ownerName, long initialBalanceCents) {
+            return create(accountId, ownerName, initialBalanceCents, InterestSchedule.NONE);
+        }
+
+        Account create(String accountId, String ownerName, long initialBalanceCents, InterestSchedule interest) {
+            switch (this) {
+                case ATOMIC: return new AtomicAccount(accountId, ownerName, initialBalanceCents, interest);
+                case STRIPED: return new StripedAccount(accountId, ownerName, initialBalanceCents, interest);
+                default:     return new LockingAccount(accountId, ownerName, initialBalanceCents, interest);
+            }
+        }
+
+        static AccountKind parse(String value) {
+            return AccountKind.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /* ---------- Batch settlement ---------- */
+    // One leg of a settlement batch, by ledger index
+    static final class Transfer {
+        final int from;
+        final int to;
+        final long amountCents;
+
+        Transfer(int from, int to, long amountCents) {
+            this.from = from;
+            this.to = to;
+            this.amountCents = amountCents;
+        }
+    }
+
+    // Outcome of Ledger.applyBatch. Transfers are decided strictly in list order against the balances the
+    // batch started from, as if run one by one with nothing interleaved: bit i of failed is set when
+    // transfer i found its source short, and a failed transfer changes nothing. accounts/netCents hold
+    // the resulting net change per touched account (ascending index, zeros included).
+    static final class BatchResult {
+        final BitSet failed;
+        final int applied;
+        final long movedCents; // gross amount of the applied transfers
+        final int[] accounts;
+        final long[] netCents;
+
+        BatchResult(BitSet failed, int applied, long movedCents, int[] accounts, long[] netCents) {
+            this.failed = failed;
+            this.applied = applied;
+            this.movedCents = movedCents;
+            this.accounts = accounts;
+            this.netCents = netCents;
+        }
+
+        int failedCount() { return failed.cardinality(); }
+    }
+
+    // The distinct accounts a batch touches and the in-order evaluation that nets it per account
+    static final class BatchNetting {
+        final List<Transfer> batch;
+        final int[] accounts; // distinct ledger indexes, ascending
+
+        BatchNetting(List<Transfer> batch) {
+            this.batch = batch;
+            int[] all = new int[batch.size() * 2];
+            for (int i = 0; i < batch.size(); i++) {
+                all[2 * i] = batch.get(i).from;
+                all[2 * i + 1] = batch.get(i).to;
+            }
+            Arrays.sort(all);
+            int distinct = 0;
+            for (int i = 0; i < all.length; i++) {
+                if (i == 0 || all[i] != all[i - 1]) all[distinct++] = all[i];
+            }
+            this.accounts = Arrays.copyOf(all, distinct);
+        }
+
+        int slot(int account) { return Arrays.binarySearch(accounts, account); }
+
+        // balances[k] is the starting balance of accounts[k]
+        BatchResult evaluate(long[] balances) {
+            long[] running = balances.clone();
+            BitSet failed = new BitSet(batch.size());
+            long moved = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                Transfer t = batch.get(i);
+                int from = slot(t.from);
+                if (running[from] < t.amountCents) {
+                    failed.set(i);
+                    continue;
+                }
+                running[from] -= t.amountCents;
+                running[slot(t.to)] += t.amountCents;
+                moved += t.amountCents;
+            }
+            for (int k = 0; k < running.length; k++) running[k] -= balances[k];
+            return new BatchResult(failed, batch.size() - failed.cardinality(), moved, accounts, running);
+        }
+    }
+
+    /* ---------- Ledger ---------- */
+    // What workers operate on: accounts addressed by a dense index 0..size()-1
+    interface Ledger {
+        int size();
+        String accountId(int index);
+        void deposit(int index, long amountCents);
+        void withdraw(int index, long amountCents) throws InsufficientFundsException;
+        void transfer(int from, int to, long amountCents) throws InsufficientFundsException;
+        long balance(int index);
+        long accrueInterest(int index);
+        // Consistent cut of all balances, taken without pausing operations (see SnapshotEpochs)
+        LedgerSnapshot snapshot();
+
+        // Applies a settlement batch with BatchResult's in-order semantics. This fallback runs the transfers
+        // one at a time, so other operations may interleave; ledgers that can hold all touched accounts
+        // at once override it to net the batch and apply it atomically.
+        default BatchResult applyBatch(List<Transfer> batch) {
+            BatchNetting netting = new BatchNetting(batch);
+            long[] net = new long[netting.accounts.length];
+            BitSet failed = new BitSet(batch.size());
+            long moved = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                Transfer t = batch.get(i);
+                try {
+                    transfer(t.from, t.to, t.amountCents);
+                    net[netting.slot(t.from)] -= t.amountCents;
+                    net[netting.slot(t.to)] += t.amountCents;
+                    moved += t.amountCents;
+                } catch (InsufficientFundsException e) {
+                    failed.set(i);
+                }
+            }
+            return new BatchResult(failed, batch.size() - failed.cardinality(), moved, netting.accounts, net);
+        }
+
+        // Adds an account while operations run and returns its index; ledgers with a fixed account set refuse
+        default int openAccount(String accountId, long initialBalanceCents) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " has a fixed set of accounts");
+        }
+
+        default void shutdown() throws InterruptedException {}
+    }
+
+    // Balances as of one instant in the serial order of operations: each deposit, withdrawal, transfer and
+    // interest accrual is either fully included or not at all, so totalCents is an exact money supply.
+    // Interest that is due but not yet materialized is not included.
+    static final class LedgerSnapshot {
+        final int epoch;
+        final long[] balances;
+        final long totalCents;
+        final long tookNanos;
+
+        LedgerSnapshot(int epoch, long[] balances, long tookNanos) {
+            this.epoch = epoch;
+            this.balances = balances;
+            long total = 0;
+            for (long b : balances) total += b;
+            this.totalCents = total;
+            this.tookNanos = tookNanos;
+        }
+    }
+
+    // Epoch-based snapshots. Every mutation registers in the current epoch for its duration (for lock-based
+    // accounts, while holding its locks). cut() starts a new epoch and waits for the operations still
+    // registered in the old one to finish; operations in the new epoch carry on meanwhile. The first write
+    // to an account in the new epoch keeps its old balance, so the old epoch's state stays readable
+    // without locks. Only two epochs are ever live, since cuts run one at a time.
+    static final class SnapshotEpochs {
+        interface CutReader {
+            void read(int cutEpoch, long[] balances);
+        }
+
+        private static volatile int epoch = 1;
+        private static final LongAdder[] inFlight = { new LongAdder(), new LongAdder() };
+        private static final ReentrantLock cutLock = new ReentrantLock();
+
+        static int enter() {
+            while (true) {
+                int e = epoch;
+                inFlight[e & 1].increment();
+                if (epoch == e) return e;
+                inFlight[e & 1].decrement(); // raced with a cut; register in the new epoch instead
+            }
+        }
+
+        static void exit(int e) {
+            inFlight[e & 1].decrement();
+        }
+
+        static int current() { return epoch; }
+
+        static LedgerSnapshot cut(int accounts, CutReader reader) {
+            long start = System.nanoTime();
+            cutLock.lock();
+            try {
+                int cutEpoch = epoch;
+                epoch = cutEpoch + 1;
+                for (int spins = 0; inFlight[cutEpoch & 1].sum() != 0; spins++) {
+                    if (spins < 100) Thread.onSpinWait();
+                    else LockSupport.parkNanos(10_000);
+                }
+                long[] balances = new long[accounts];
+                reader.read(cutEpoch, balances);
+                return new LedgerSnapshot(cutEpoch, balances, System.nanoTime() - start);
+            } finally {
+                cutLock.unlock();
+            }
+        }
+    }
+
+    /* ---------- Account registry ---------- */
+    // Maps external account ids to dense int handles (0, 1, 2, ... in registration order), which are the
+    // ledger indexes and the lock order. The id index is an open-addressing table of parallel arrays, so
+    // there is no boxing and no per-entry node. Lookups are lock-free. Registration is serialized and can
+    // run while workers operate: a new account is stored under its handle before its id is published
+    // in the table, and size() is bumped last.
+    static final class AccountRegistry {
+        private static final class Table {
+            final AtomicReferenceArray<String> ids;
+            final int[] handles; // handles[i] is written before ids[i] is published
+
+            Table(int capacity) {
+                this.ids = new AtomicReferenceArray<>(capacity);
+                this.handles = new int[capacity];
+            }
+        }
+
+        private final ReentrantLock registering = new ReentrantLock();
+        private volatile Table table = new Table(16);    // replaced, never resized in place
+        private volatile Account[] accounts = new Account[8]; // by handle; replaced when it grows
+        private volatile int size;
+
+        int size() { return size; }
+
+        // handle must come from size() or handleOf(), so the account is visible
+        Account get(int handle) { return accounts[handle]; }
+
+        // -1 if the id is not registered
+        int handleOf(String accountId) {
+            Table t = table;
+            int mask = t.handles.length - 1;
+            for (int i = spread(accountId.hashCode()) & mask; ; i = (i + 1) & mask) {
+                String id = t.ids.get(i);
+                if (id == null) return -1;
+                if (id.equals(accountId)) return t.handles[i];
+            }
+        }
+
+        // Creates the account with its handle (e.g. to name its owner) and publishes it
+        int register(String accountId, IntFunction<Account> factory) {
+            registering.lock();
+            try {
+                if (handleOf(accountId) >= 0) throw new IllegalArgumentException("Duplicate account id " + accountId);
+                int handle = size;
+                Account account = factory.apply(handle);
+                if (!account.getAccountId().equals(accountId) || account.handle >= 0) {
+                    throw new IllegalArgumentException("Account " + account.getAccountId() + " cannot be registered as " + accountId);
+                }
+                account.handle = handle;
+                if (handle == accounts.length) accounts = Arrays.copyOf(accounts, handle * 2);
+                accounts[handle] = account;
+                if ((handle + 1) * 2 > table.handles.length) table = rehash(table, table.handles.length * 2); // load <= 1/2
+                insert(table, accountId, handle);
+                size = handle + 1;
+                return handle;
+            } finally {
+                registering.unlock();
+            }
+        }
+
+        private static Table rehash(Table old, int capacity) {
+            Table t = new Table(capacity);
+            for (int i = 0; i < old.handles.length; i++) {
+                String id = old.ids.get(i);
+                if (id != null) insert(t, id, old.handles[i]);
+            }
+            return t;
+        }
+
+        private static void insert(Table t, String accountId, int handle) {
+            int mask = t.handles.length - 1;
+            int i = spread(accountId.hashCode()) & mask;
+            while (t.ids.get(i) != null) i = (i + 1) & mask;
+            t.handles[i] = handle;
+            t.ids.set(i, accountId);
+        }
+
+        private static int spread(int h) {
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    // Default mode: shared Account objects, each guarding its own balance. Ledger indexes are the accounts'
+    // AccountRegistry handles, and new accounts can be opened while workers run.
+    static class AccountListLedger implements Ledger {
+        private final AccountRegistry accounts;
+        private final AccountKind kind;
+        private final String ownerPrefix;
+        private final InterestSchedule interest;
+
+        public AccountListLedger(AccountKind kind, String ownerPrefix, InterestSchedule interest) {
+            this.accounts = new AccountRegistry();
+            this.kind = kind;
+            this.ownerPrefix = ownerPrefix;
+            this.interest = interest;
+        }
+
+        @Override public int size() { return accounts.size(); }
+        @Override public String accountId(int index) { return accounts.get(index).getAccountId(); }
+        @Override public void deposit(int index, long amountCents) { accounts.get(index).deposit(amountCents); }
+        @Override public long balance(int index) { return accounts.get(index).getBalance(); }
+        @Override public long accrueInterest(int index) { return accounts.get(index).accrueInterest(); }
+
+        @Override
+        public void withdraw(int index, long amountCents) throws InsufficientFundsException {
+            accounts.get(index).withdraw(amountCents);
+        }
+
+        @Override
+        public void transfer(int from, int to, long amountCents) throws InsufficientFundsException {
+            accounts.get(from).transferTo(accounts.get(to), amountCents);
+        }
+
+        // Owners are named ownerPrefix + (index + 1)
+        @Override
+        public int openAccount(String accountId, long initialBalanceCents) {
+            return accounts.register(accountId,
+                handle -> kind.create(accountId, ownerPrefix + (handle + 1), initialBalanceCents, interest));
+        }
+
+        int indexOf(String accountId) { return accounts.handleOf(accountId); }
+
+        @Override
+        public LedgerSnapshot snapshot() {
+            return SnapshotEpochs.cut(accounts.size(), (cutEpoch, balances) -> {
+                for (int i = 0; i < balances.length; i++) balances[i] = accounts.get(i).balanceAt(cutEpoch);
+            });
+        }
+
+        // Lock-based accounts settle the batch atomically; AtomicAccount has no locks to hold and falls back
+        @Override
+        public BatchResult applyBatch(List<Transfer> batch) {
+            BatchNetting netting = new BatchNetting(batch);
+            LockingAccount[] touched = new LockingAccount[netting.accounts.length];
+            for (int k = 0; k < touched.length; k++) {
+                Account account = accounts.get(netting.accounts[k]);
+                if (!(account instanceof LockingAccount)) return Ledger.super.applyBatch(batch);
+                touched[k] = (LockingAccount) account;
+            }
+            return LockingAccount.settle(touched, netting);
+        }
+    }
+
+    // Sharded mode (--mode=sharded): accounts are partitioned across N single-threaded shards by index % N.
+    // Each shard's balances are only ever touched by its own thread, so there are no locks or CAS at all;
+    // callers submit a message to the owning shard and wait for the reply.
+    // A cross-shard transfer is two messages: phase 1 debits the source on its shard (failing there on
+    // insufficient funds), phase 2 credits the target on its shard. Money debited in phase 1 is
+    // reserved for the credit, which cannot fail.
+    static class ShardedLedger implements Ledger {
+        private static final class Shard {
+            final ExecutorService executor;
+            final long[] balances;       // owned by the executor thread
+            final int[] interestEpochs;  // likewise
+            final int[] writeEpochs;     // snapshot epoch of each slot's last write
+            final long[] cutBalances;    // balance at the end of the epoch before writeEpochs[slot]
+            final InterestSchedule interest;
+            final String[] accountIds;   // the whole ledger's; slot s is account s * stride + id
+            final int id;
+            final int stride;
+
+            Shard(int id, int stride, String[] accountIds, InterestSchedule interest) {
+                this.executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "Shard-" + id));
+                this.balances = new long[(accountIds.length - id + stride - 1) / stride];
+                this.interestEpochs = new int[balances.length];
+                this.writeEpochs = new int[balances.length];
+                this.cutBalances = new long[balances.length];
+                this.interest = interest;
+                this.accountIds = accountIds;
+                this.id = id;
+                this.stride = stride;
+                Arrays.fill(interestEpochs, interest.epoch());
+            }
+
+            // Phase 2 of a cross-shard transfer can arrive after a write of the next snapshot epoch;
+            // such a late write belongs to the earlier cut, so it is applied to the pre-image too.
+            void write(int slot, long balance, int epoch) {
+                if (epoch > writeEpochs[slot]) {
+                    cutBalances[slot] = balances[slot];
+                    writeEpochs[slot] = epoch;
+                } else if (epoch < writeEpochs[slot]) {
+                    cutBalances[slot] += balance - balances[slot];
+                }
+                balances[slot] = balance;
+            }
+
+            long balanceAt(int slot, int cutEpoch) {
+                return writeEpochs[slot] > cutEpoch ? cutBalances[slot] : balances[slot];
+            }
+
+            long accrue(int slot, int epoch) {
+                int current = interest.epoch();
+                if (interestEpochs[slot] == current) return 0;
+                long before = balances[slot];
+                write(slot, interest.compound(before, interestEpochs[slot], current), epoch);
+                interestEpochs[slot] = current;
+                interest.recordAccrual(slot * stride + id, balances[slot] - before);
+                return balances[slot] - before;
+            }
+
+            boolean debit(int slot, long amountCents, int epoch) {
+                accrue(slot, epoch);
+                if (balances[slot] < amountCents) {
+                    return false;
+                }
+                write(slot, balances[slot] - amountCents, epoch);
+                return true;
+            }
+
+            void credit(int slot, long amountCents, int epoch) {
+                accrue(slot, epoch);
+                write(slot, balances[slot] + amountCents, epoch);
+            }
+        }
+
+        private final String[] accountIds;
+        private final Shard[] shards;
+
+        // Balances are copied in before any shard task runs; executor submission publishes them.
+        public ShardedLedger(String[] accountIds, long[] initialBalancesCents, int shardCount) {
+            this(accountIds, initialBalancesCents, shardCount, InterestSchedule.NONE);
+        }
+
+        public ShardedLedger(String[] accountIds, long[] initialBalancesCents, int shardCount, InterestSchedule interest) {
+            if (shardCount < 1) throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+            this.accountIds = accountIds;
+            this.shards = new Shard[shardCount];
+            for (int s = 0; s < shardCount; s++) {
+                shards[s] = new Shard(s, shardCount, accountIds, interest);
+            }
+            for (int i = 0; i < accountIds.length; i++) {
+                shards[shardOf(i)].balances[slotOf(i)] = initialBalancesCents[i];
+            }
+        }
+
+        private int shardOf(int index) { return index % shards.length; }
+        private int slotOf(int index) { return index / shards.length; }
+
+        @Override public int size() { return accountIds.length; }
+        @Override public String accountId(int index) { return accountIds[index]; }
+
+        // Every operation registers its snapshot epoch from the caller's side, so a cut waits for both
+        // phases of a transfer without the shards knowing about it.
+        @Override
+        public void deposit(int index, long amountCents) {
+            Shard shard = shards[shardOf(index)];
+            int slot = slotOf(index);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                CompletableFuture.runAsync(() -> shard.credit(slot, amountCents, epoch), shard.executor).join();
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        public void withdraw(int index, long amountCents) throws InsufficientFundsException {
+            Shard shard = shards[shardOf(index)];
+            int slot = slotOf(index);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                if (!CompletableFuture.supplyAsync(() -> shard.debit(slot, amountCents, epoch), shard.executor).join()) {
+                    throw new InsufficientFundsException("Account " + accountIds[index] + " has insufficient funds.");
+                }
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        public void transfer(int from, int to, long amountCents) throws InsufficientFundsException {
+            Shard source = shards[shardOf(from)];
+            Shard target = shards[shardOf(to)];
+            int fromSlot = slotOf(from);
+            int toSlot = slotOf(to);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                CompletableFuture<Boolean> result;
+                if (source == target) {
+                    result = CompletableFuture.supplyAsync(() -> {
+                        if (!source.debit(fromSlot, amountCents, epoch)) return false;
+                        source.credit(toSlot, amountCents, epoch);
+                        return true;
+                    }, source.executor);
+                } else {
+                    result = CompletableFuture
+                        .supplyAsync(() -> source.debit(fromSlot, amountCents, epoch), source.executor) // phase 1
+                        .thenApplyAsync(debited -> {                                                    // phase 2
+                            if (debited) target.credit(toSlot, amountCents, epoch);
+                            return debited;
+                        }, target.executor);
+                }
+                if (!result.join()) {
+                    throw new InsufficientFundsException("Insufficient funds in " + accountIds[from]);
+                }
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        public long balance(int index) {
+            Shard shard = shards[shardOf(index)];
+            int slot = slotOf(index);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                return CompletableFuture.supplyAsync(() -> {
+                    shard.accrue(slot, epoch);
+                    return shard.balances[slot];
+                }, shard.executor).join();
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        @Override
+        public long accrueInterest(int index) {
+            Shard shard = shards[shardOf(index)];
+            int slot = slotOf(index);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                return CompletableFuture.supplyAsync(() -> shard.accrue(slot, epoch), shard.executor).join();
+            } finally {
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        // A batch holds each involved shard once, in shard order: a task on the shard reads (and catches up
+        // interest on) its touched accounts, hands them over and then waits for the net deltas, keeping the
+        // shard's thread to itself. Holding shards in a fixed order means two batches cannot deadlock;
+        // single transfers never wait on a shard while holding another.
+        @Override
+        public BatchResult applyBatch(List<Transfer> batch) {
+            BatchNetting netting = new BatchNetting(batch);
+            int[] accounts = netting.accounts;
+            long[] balances = new long[accounts.length];
+            List<CompletableFuture<long[]>> commits = new ArrayList<>();
+            List<CompletableFuture<Void>> applied = new ArrayList<>();
+            int epoch = SnapshotEpochs.enter();
+            try {
+                for (int s = 0; s < shards.length; s++) {
+                    Shard shard = shards[s];
+                    int shardId = s;
+                    CompletableFuture<Void> held = new CompletableFuture<>();
+                    CompletableFuture<long[]> commit = new CompletableFuture<>();
+                    boolean involved = false;
+                    for (int account : accounts) involved |= shardOf(account) == shardId;
+                    if (!involved) continue;
+                    applied.add(CompletableFuture.runAsync(() -> {
+                        for (int k = 0; k < accounts.length; k++) {
+                            if (shardOf(accounts[k]) != shardId) continue;
+                            shard.accrue(slotOf(accounts[k]), epoch);
+                            balances[k] = shard.balances[slotOf(accounts[k])];
+                        }
+                        held.complete(null);
+                        long[] net = commit.join();
+                        for (int k = 0; k < accounts.length; k++) {
+                            if (shardOf(accounts[k]) != shardId || net[k] == 0) continue;
+                            int slot = slotOf(accounts[k]);
+                            shard.write(slot, shard.balances[slot] + net[k], epoch);
+                        }
+                    }, shard.executor));
+                    commits.add(commit);
+                    held.join();
+                }
+                BatchResult result = netting.evaluate(balances);
+                for (CompletableFuture<long[]> commit : commits) commit.complete(result.netCents);
+                CompletableFuture.allOf(applied.toArray(new CompletableFuture<?>[0])).join();
+                return result;
+            } finally {
+                long[] none = new long[accounts.length];
+                for (CompletableFuture<long[]> commit : commits) commit.complete(none); // releases shards on failure
+                SnapshotEpochs.exit(epoch);
+            }
+        }
+
+        // Each shard reads its own slots as one task queued behind its in-flight work; other shards keep going
+        @Override
+        public LedgerSnapshot snapshot() {
+            return SnapshotEpochs.cut(accountIds.length, (cutEpoch, balances) -> {
+                CompletableFuture<?>[] reads = new CompletableFuture<?>[shards.length];
+                for (int s = 0; s < shards.length; s++) {
+                    Shard shard = shards[s];
+                    reads[s] = CompletableFuture.runAsync(() -> {
+                        for (int slot = 0; slot < shard.balances.length; slot++) {
+                            balances[slot * shard.stride + shard.id] = shard.balanceAt(slot, cutEpoch);
+                        }
+                    }, shard.executor);
+                }
+                CompletableFuture.allOf(reads).join();
+            });
+        }
+
+        @Override
+        public void shutdown() throws InterruptedException {
+            for (Shard shard : shards) shard.executor.shutdown();
+            for (Shard shard : shards) shard.executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    // Off-heap mode (--mode=offheap): each account is a fixed-width slot outside the Java heap, addressed by
+    // its ledger index, so tens of millions of accounts cost no heap objects and give the GC nothing to trace.
+    // Slot layout (40 bytes, native byte order):
+    //   0 long balance | 8 long cutBalance | 16 int writeEpoch | 20 int interestEpoch
+    //   24 int lock word | 28 int owner name ref | 32 int account id ref | 36 unused
+    // Ids and owner names live in a separate string region as [int length][UTF-8 bytes], referenced by
+    // offset; owner names are interned, so each distinct name is stored once. Slot fields are accessed
+    // through VarHandles.
+    // The lock word is a spin lock taken by CAS; operations lock their slots in index order and register
+    // their snapshot epoch while holding them, so the locking and snapshot rules are LockingAccount's.
+    // With --table=DIR both regions are memory-mapped files: open() maps a saved table without reading it,
+    // and save() accrues interest and forces it to disk. Epoch fields are stored relative to the epochs at
+    // save time and rebased on open, so reloading is O(1) however many accounts there are.
+    static class OffHeapLedger implements Ledger {
+        private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+        private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+        static final int SLOT = 40;
+        private static final int BALANCE = 0, CUT_BALANCE = 8, WRITE_EPOCH = 16, INTEREST_EPOCH = 20, LOCK = 24,
+            OWNER = 28, ID = 32;
+        private static final int CHUNK_SHIFT = 24; // 16M slots (640 MB) per buffer, below the 2 GB buffer limit
+        private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+        // accounts.tbl header; the slots follow it
+        static final String TABLE_FILE = "accounts.tbl";
+        static final String STRINGS_FILE = "strings.tbl";
+        private static final int MAGIC = 0x4254424C; // "BTBL"
+        private static final int VERSION = 1;
+        private static final int HEADER = 64;
+        // 0 magic | 4 version | 8 slot size | 12 accounts | 16 interest epoch | 20 snapshot epoch | 24 clean | 28 string bytes
+
+        private final int size;
+        private final ByteBuffer[] chunks;
+        private final ByteBuffer strings;
+        private final ByteBuffer header; // null for an in-memory table
+        private final InterestSchedule interest;
+        private final int interestBase; // stored interest epoch = schedule epoch + interestBase
+        private final int snapshotBase; // stored write epoch = snapshot epoch + snapshotBase
+
+        private OffHeapLedger(int size, ByteBuffer[] chunks, ByteBuffer strings, ByteBuffer header,
+                              InterestSchedule interest, int interestBase, int snapshotBase) {
+            this.size = size;
+            this.chunks = chunks;
+            this.strings = strings;
+            this.header = header;
+            this.interest = interest;
+            this.interestBase = interestBase;
+            this.snapshotBase = snapshotBase;
+        }
+
+        // In direct memory; the table is gone when the process exits
+        static OffHeapLedger allocate(String[] ids, long[] balances, String ownerPrefix, InterestSchedule interest) {
+            try {
+                return create(null, ids, balances, ownerPrefix, interest);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // only files throw
+            }
+        }
+
+        // Writes a new table (replacing any in dir) from the given accounts; owners are ownerPrefix + (i + 1)
+        static OffHeapLedger create(Path dir, String[] ids, long[] balances, String ownerPrefix, InterestSchedule interest)
+                throws IOException {
+            // Sized for no duplicates; interning only leaves the tail unused
+            long stringBytes = 0;
+            for (int i = 0; i < ids.length; i++) {
+                stringBytes += 8 + ids[i].getBytes(StandardCharsets.UTF_8).length
+                    + (ownerPrefix + (i + 1)).getBytes(StandardCharsets.UTF_8).length;
+            }
+            if (stringBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("String region exceeds 2 GB");
+
+            ByteBuffer header = null;
+            ByteBuffer strings;
+            ByteBuffer[] chunks = new ByteBuffer[(ids.length + CHUNK_MASK) >>> CHUNK_SHIFT];
+            if (dir == null) {
+                strings = direct((int) stringBytes);
+                for (int c = 0; c < chunks.length; c++) chunks[c] = direct(chunkBytes(ids.length, c));
+            } else {
+                Files.createDirectories(dir);
+                Files.deleteIfExists(dir.resolve(TABLE_FILE));
+                Files.deleteIfExists(dir.resolve(STRINGS_FILE));
+                try (FileChannel ch = FileChannel.open(dir.resolve(STRINGS_FILE),
+                         StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    strings = ch.map(FileChannel.MapMode.READ_WRITE, 0, stringBytes);
+                }
+                try (FileChannel ch = FileChannel.open(dir.resolve(TABLE_FILE),
+                         StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    header = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+                    for (int c = 0; c < chunks.length; c++) {
+                        chunks[c] = ch.map(FileChannel.MapMode.READ_WRITE,
+                            HEADER + ((long) c << CHUNK_SHIFT) * SLOT, chunkBytes(ids.length, c));
+                    }
+                }
+                header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, SLOT).putInt(12, ids.length)
+                    .putInt(24, 0).putInt(28, (int) stringBytes);
+            }
+            StringInterner owners = new StringInterner(strings, ids.length);
+            OffHeapLedger ledger = new OffHeapLedger(ids.length, chunks, strings, header, interest, 0, 0);
+            int interestEpoch = interest.epoch();
+            for (int i = 0; i < ids.length; i++) {
+                ByteBuffer chunk = ledger.chunk(i);
+                int at = offset(i);
+                LONG.set(chunk, at + BALANCE, balances[i]);
+                LONG.set(chunk, at + CUT_BALANCE, 0L);
+                INT.set(chunk, at + WRITE_EPOCH, 0);
+                INT.set(chunk, at + INTEREST_EPOCH, interestEpoch);
+                INT.set(chunk, at + LOCK, 0);
+                INT.set(chunk, at + ID, owners.append(ids[i].getBytes(StandardCharsets.UTF_8))); // ids are unique
+                INT.set(chunk, at + OWNER, owners.intern((ownerPrefix + (i + 1)).getBytes(StandardCharsets.UTF_8)));
+            }
+            return ledger;
+        }
+
+        // Builds the string region: open addressing over refs into the region itself, so interning keeps no
+        // String objects on the heap, only an int per table slot
+        private static final class StringInterner {
+            private final ByteBuffer region;
+            private final int[] table; // ref + 1, 0 = empty
+            private int used;
+
+            StringInterner(ByteBuffer region, int expected) {
+                this.region = region;
+                this.table = new int[Math.max(16, Integer.highestOneBit(Math.max(1, expected) * 2 - 1) * 2)];
+            }
+
+            int append(byte[] bytes) {
+                int ref = used;
+                region.putInt(ref, bytes.length);
+                for (int k = 0; k < bytes.length; k++) region.put(ref + 4 + k, bytes[k]);
+                used += 4 + bytes.length;
+                return ref;
+            }
+
+            int intern(byte[] bytes) {
+                int mask = table.length - 1;
+                for (int i = Arrays.hashCode(bytes) * 0x9E3779B9 >>> 1 & mask; ; i = (i + 1) & mask) {
+                    if (table[i] == 0) {
+                        int ref = append(bytes);
+                        table[i] = ref + 1;
+                        return ref;
+                    }
+                    if (matches(table[i] - 1, bytes)) return table[i] - 1;
+                }
+            }
+
+            private boolean matches(int ref, byte[] bytes) {
+                if (region.getInt(ref) != bytes.length) return false;
+                for (int k = 0; k < bytes.length; k++) {
+                    if (region.get(ref + 4 + k) != bytes[k]) return false;
+                }
+                return true;
+            }
+        }
+
+        static boolean exists(Path dir) {
+            return Files.exists(dir.resolve(TABLE_FILE)) && Files.exists(dir.resolve(STRINGS_FILE));
+        }
+
+        // Maps a table written by save(). Nothing is read beyond the header; pages fault in as accounts are used.
+        static OffHeapLedger open(Path dir, InterestSchedule interest) throws IOException {
+            ByteBuffer header;
+            ByteBuffer[] chunks;
+            ByteBuffer strings;
+            try (FileChannel ch = FileChannel.open(dir.resolve(TABLE_FILE), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (ch.size() < HEADER) throw new IOException(dir.resolve(TABLE_FILE) + " is truncated");
+                header = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != SLOT) {
+                    throw new IOException(dir.resolve(TABLE_FILE) + " is not an account table of this version");
+                }
+                if (header.getInt(24) != 1) {
+                    throw new IOException(dir.resolve(TABLE_FILE) + " was not saved cleanly; recreate it, e.g. from --wal");
+                }
+                int size = header.getInt(12);
+                if (ch.size() < HEADER + (long) size * SLOT) throw new IOException(dir.resolve(TABLE_FILE) + " is truncated");
+                chunks = new ByteBuffer[(size + CHUNK_MASK) >>> CHUNK_SHIFT];
+                for (int c = 0; c < chunks.length; c++) {
+                    chunks[c] = ch.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER + ((long) c << CHUNK_SHIFT) * SLOT, chunkBytes(size, c));
+                }
+            }
+            try (FileChannel ch = FileChannel.open(dir.resolve(STRINGS_FILE), StandardOpenOption.READ)) {
+                strings = ch.map(FileChannel.MapMode.READ_ONLY, 0, header.getInt(28));
+            }
+            // Stale lock words cannot survive: save() ran with no operation in flight
+            OffHeapLedger ledger = new OffHeapLedger(header.getInt(12), chunks, strings, header, interest,
+                header.getInt(16) - interest.epoch(), header.getInt(20) - SnapshotEpochs.current());
+            header.putInt(24, 0); // dirty until the next save()
+            ((MappedByteBuffer) header).force();
+            return ledger;
+        }
+
+        private static ByteBuffer direct(int bytes) {
+            return ByteBuffer.allocateDirect(bytes + 8).alignedSlice(8); // VarHandle atomics need aligned longs
+        }
+
+        private static int chunkBytes(int size, int c) {
+            return Math.min(1 << CHUNK_SHIFT, size - (c << CHUNK_SHIFT)) * SLOT;
+        }
+
+        private ByteBuffer chunk(int index) { return chunks[index >>> CHUNK_SHIFT]; }
+        private static int offset(int index) { return (index & CHUNK_MASK) * SLOT; }
+
+        private String string(int ref) {
+            byte[] bytes = new byte[strings.getInt(ref)];
+            ByteBuffer view = strings.duplicate();
+            view.position(ref + 4);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override public int size() { return size; }
+        @Override public String accountId(int index) { return string((int) INT.get(chunk(index), offset(index) + ID)); }
+        public String ownerName(int index) { return string((int) INT.get(chunk(index), offset(index) + OWNER)); }
+
+        /* slot lock and state; the helpers below must hold the slot's lock unless noted */
+
+        private void lock(int index, boolean countConflict) {
+            ByteBuffer chunk = chunk(index);
+            int at = offset(index) + LOCK;
+            if ((boolean) INT.compareAndSet(chunk, at, 0, 1)) return;
+            if (countConflict) ContentionStats.lockConflicts.increment();
+            for (int spins = 0; !(boolean) INT.compareAndSet(chunk, at, 0, 1); spins++) {
+                if (spins < 100) Thread.onSpinWait();
+                else LockSupport.parkNanos(1_000);
+            }
+        }
+
+        private void unlock(int index) {
+            INT.setRelease(chunk(index), offset(index) + LOCK, 0);
+        }
+
+        private long balanceOf(int index) {
+            return (long) LONG.get(chunk(index), offset(index) + BALANCE);
+        }
+
+        // Publishes writeEpoch before the balance, as LockingAccount.setBalance does
+        private void setBalance(int index, long newBalance, int epoch) {
+            ByteBuffer chunk = chunk(index);
+            int at = offset(index);
+            int stored = epoch + snapshotBase;
+            if ((int) INT.get(chunk, at + WRITE_EPOCH) != stored) {
+                LONG.set(chunk, at + CUT_BALANCE, (long) LONG.get(chunk, at + BALANCE));
+                INT.setVolatile(chunk, at + WRITE_EPOCH, stored);
+            }
+            LONG.setVolatile(chunk, at + BALANCE, newBalance);
+        }
+
+        private long accrueLocked(int index, int epoch) {
+            ByteBuffer chunk = chunk(index);
+            int at = offset(index) + INTEREST_EPOCH;
+            int current = interest.epoch();
+            int from = (int) INT.get(chunk, at) - interestBase;
+            if (from == current) return 0;
+            long before = balanceOf(index);
+            setBalance(index, interest.compound(before, from, current), epoch);
+            INT.set(chunk, at, current + interestBase);
+            long accrued = balanceOf(index) - before;
+            interest.recordAccrual(index, accrued);
+            return accrued;
+        }
+
+        // Lock-free, like LockingAccount.balanceAt; only valid inside SnapshotEpochs.cut
+        private long balanceAt(int index, int cutEpoch) {
+            ByteBuffer chunk = chunk(index);
+            int at = offset(index);
+            int cut = cutEpoch + snapshotBase;
+            while (true) {
+                int written = (int) INT.getVolatile(chunk, at + WRITE_EPOCH);
+                if (written > cut) return (long) LONG.get(chunk, at + CUT_BALANCE);
+                long b = (long) LONG.getVolatile(chunk, at + BALANCE);
+                if ((int) INT.getVolatile(chunk, at + WRITE_EPOCH) == written) return b;
+            }
+        }
+
+        @Override
+        public void deposit(int index, long amountCents) {
+            long requested = BankMetrics.lockRequested();
+            lock(index, false);
+            long acquired = BankMetrics.lockAcquired(OpType.DEPOSIT, requested);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                accrueLocked(index, epoch);
+                setBalance(index, balanceOf(index) + amountCents, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+                unlock(index);
+                BankMetrics.lockReleased(OpType.DEPOSIT, acquired);
+            }
+        }
+
+        @Override
+        public void withdraw(int index, long amountCents) throws InsufficientFundsException {
+            long requested = BankMetrics.lockRequested();
+            lock(index, false);
+            long acquired = BankMetrics.lockAcquired(OpType.WITHDRAW, requested);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                accrueLocked(index, epoch);
+                if (balanceOf(index) < amountCents) {
+                    throw new InsufficientFundsException("Account " + accountId(index) + " has insufficient funds.");
+                }
+                setBalance(index, balanceOf(index) - amountCents, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+                unlock(index);
+                BankMetrics.lockReleased(OpType.WITHDRAW, acquired);
+            }
+        }
+
+        // Slots are locked in index order, so transfers and batches cannot deadlock
+        @Override
+        public void transfer(int from, int to, long amountCents) throws InsufficientFundsException {
+            int first = Math.min(from, to);
+            int second = Math.max(from, to);
+            long requested = BankMetrics.lockRequested();
+            lock(first, true);
+            if (second != first) lock(second, true);
+            long acquired = BankMetrics.lockAcquired(OpType.TRANSFER, requested);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                accrueLocked(from, epoch);
+                if (to != from) accrueLocked(to, epoch);
+                if (balanceOf(from) < amountCents) {
+                    throw new InsufficientFundsException("Insufficient funds in " + accountId(from));
+                }
+                setBalance(from, balanceOf(from) - amountCents, epoch);
+                setBalance(to, balanceOf(to) + amountCents, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+                if (second != first) unlock(second);
+                unlock(first);
+                BankMetrics.lockReleased(OpType.TRANSFER, acquired);
+            }
+        }
+
+        @Override
+        public long balance(int index) {
+            lock(index, false);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                accrueLocked(index, epoch);
+                return balanceOf(index);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+                unlock(index);
+            }
+        }
+
+        @Override
+        public long accrueInterest(int index) {
+            // Racy read, as in LockingAccount: the sweep skips up-to-date slots without locking them
+            if ((int) INT.get(chunk(index), offset(index) + INTEREST_EPOCH) - interestBase == interest.epoch()) return 0;
+            long requested = BankMetrics.lockRequested();
+            lock(index, false);
+            long acquired = BankMetrics.lockAcquired(OpType.INTEREST, requested);
+            int epoch = SnapshotEpochs.enter();
+            try {
+                return accrueLocked(index, epoch);
+            } finally {
+                SnapshotEpochs.exit(epoch);
+                unlock(index);
+                BankMetrics.lockReleased(OpType.INTEREST, acquired);
+            }
+        }
+
+        // Same shape as LockingAccount.settle; netting.accounts is sorted, which is the lock order
+        @Override
+        public BatchResult applyBatch(List<Transfer> batch) {
+            BatchNetting netting = new BatchNetting(batch);
+            int[] accounts = netting.accounts;
+            long requested = BankMetrics.lockRequested();
+            int locked = 0;
+            try {
+                for (int account : accounts) {
+                    lock(account, true);
+                    locked++;
+                }
+                long acquired = BankMetrics.lockAcquired(OpType.BATCH, requested);
+                int epoch = SnapshotEpochs.enter();
+                try {
+                    long[] balances = new long[accounts.length];
+                    for (int k = 0; k < accounts.length; k++) {
+                        accrueLocked(accounts[k], epoch);
+                        balances[k] = balanceOf(accounts[k]);
+                    }
+                    BatchResult result = netting.evaluate(balances);
+                    for (int k = 0; k < accounts.length; k++) {
+                        if (result.netCents[k] != 0) setBalance(accounts[k], balances[k] + result.netCents[k], epoch);
+                    }
+                    return result;
+                } finally {
+                    SnapshotEpochs.exit(epoch);
+                    BankMetrics.lockReleased(OpType.BATCH, acquired);
+                }
+            } finally {
+                for (int k = locked - 1; k >= 0; k--) unlock(accounts[k]);
+            }
+        }
+
+        @Override
+        public LedgerSnapshot snapshot() {
+            return SnapshotEpochs.cut(size, (cutEpoch, balances) -> {
+                for (int i = 0; i < balances.length; i++) balances[i] = balanceAt(i, cutEpoch);
+            });
+        }
+
+        // Brings every slot up to the current interest epoch (rates are not persisted), records the epochs
+        // the stored fields are relative to and forces the table. Call with no operations in flight.
+        void save() {
+            if (header == null) return;
+            for (int i = 0; i < size; i++) accrueInterest(i);
+            header.putInt(16, interest.epoch() + interestBase);
+            header.putInt(20, SnapshotEpochs.current() + snapshotBase);
+            for (ByteBuffer chunk : chunks) ((MappedByteBuffer) chunk).force();
+            ((MappedByteBuffer) strings).force();
+            header.putInt(24, 1);
+            ((MappedByteBuffer) header).force();
+        }
+
+        // A file-backed table is saved on shutdown
+        @Override
+        public void shutdown() {
+            save();
+        }
+    }
+
+    // Mutable so that TransactionRingBuffer can reuse preallocated instances as slots
+    static class Transaction {
+        enum Type { DEPOSIT, WITHDRAW, TRANSFER, BATCH }
+
+        // Wall clock anchored once at startup and advanced with nanoTime, so stamping allocates nothing
+        private static final long CLOCK_BASE_EPOCH_NANOS;
+        private static final long CLOCK_BASE_NANO_TIME = System.nanoTime();
+        static {
+            Instant now = Instant.now();
+            CLOCK_BASE_EPOCH_NANOS = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        }
+
+        long epochNanos;
+        Type type;
+        String fromAccount; // for deposit, fromAccount = null or "EXTERNAL"
+        String toAccount;   // for withdraw, toAccount = null or "EXTERNAL"
+        long amountCents;
+        boolean success;
+        String message;
+
+        Transaction() { }
+
+        public Transaction(Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+            set(type, fromAccount, toAccount, amountCents, success, message);
+        }
+
+        Transaction set(Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+            this.epochNanos = nowEpochNanos();
+            this.type = type;
+            this.fromAccount = fromAccount;
+            this.toAccount = toAccount;
+            this.amountCents = amountCents;
+            this.success = success;
+            this.message = message;
+            return this;
+        }
+
+        static long nowEpochNanos() {
+            return CLOCK_BASE_EPOCH_NANOS + (System.nanoTime() - CLOCK_BASE_NANO_TIME);
+        }
+
+        static Instant toInstant(long epochNanos) {
+            return Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L), Math.floorMod(epochNanos, 1_000_000_000L));
+        }
+
+        @Override
+        public String toString() {
+            return format(toInstant(epochNanos), type, fromAccount, toAccount, amountCents, success, message);
+        }
+
+        // The transactions.log line format, shared with BinaryLogRenderer
+        static String format(Instant timestamp, Type type, String fromAccount, String toAccount,
+                             long amountCents, boolean success, String message) {
+            return String.format("%s | %s | from=%s -> to=%s | %.2f | %s | %s",
+                timestamp.toString(), type, fromAccount, toAccount, amountCents/100.0, success ? "SUCCESS" : "FAILED", message);
+        }
+    }
+
+    /* ---------- Transaction channel (workers -> logger) ---------- */
+    // Many producers publish; exactly one consumer (the logger thread) drains.
+    interface TransactionChannel {
+        // Waits for room if the channel is bounded and full
+        void publish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message);
+
+        // Publishes only if there is room right now; never waits
+        boolean tryPublish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message);
+
+        // Waits up to timeoutMillis for the first transaction, then hands up to max of them to handler.
+        // The handler must not keep the Transaction: ring buffer slots are reused once drain returns.
+        int drain(TransactionHandler handler, int max, long timeoutMillis) throws IOException, InterruptedException;
+
+        // True when nothing has been published (or claimed) that the consumer has not drained yet
+        boolean isEmpty();
+
+        // Transactions published (or claimed) but not yet drained; approximate while producers run
+        long depth();
+    }
+
+    interface TransactionHandler {
+        void accept(Transaction tx) throws IOException;
+    }
+
+    // --log-channel=queue: the original LinkedBlockingQueue, one Transaction and one node per publish;
+    // bounded by --ring-size in the simulator, unbounded when constructed without a capacity
+    static class QueueTransactionChannel implements TransactionChannel {
+        private final BlockingQueue<Transaction> queue;
+        private final List<Transaction> batch = new ArrayList<>(); // consumer thread only
+
+        public QueueTransactionChannel() {
+            this(Integer.MAX_VALUE);
+        }
+
+        public QueueTransactionChannel(int capacity) {
+            this.queue = new LinkedBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void publish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+            try {
+                queue.put(new Transaction(type, fromAccount, toAccount, amountCents, success, message));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // only at shutdown; the transaction is not logged
+            }
+        }
+
+        @Override
+        public boolean tryPublish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+            return queue.offer(new Transaction(type, fromAccount, toAccount, amountCents, success, message));
+        }
+
+        @Override
+        public int drain(TransactionHandler handler, int max, long timeoutMillis) throws IOException, InterruptedException {
+            Transaction first = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                return 0;
+            }
+            batch.add(first);
+            queue.drainTo(batch, max - 1);
+            try {
+                for (Transaction tx : batch) handler.accept(tx);
+                return batch.size();
+            } finally {
+                batch.clear();
+            }
+        }
+
+        @Override
+        public boolean isEmpty() { return queue.isEmpty(); }
+
+        @Override
+        public long depth() { return queue.size(); }
+    }
+
+    // How a ring buffer producer (buffer full) or the consumer (buffer empty) waits: --wait=spin|yield|park
+    enum WaitStrategy {
+        SPIN, YIELD, PARK;
+
+        void idle() {
+            switch (this) {
+                case SPIN:  Thread.onSpinWait(); break;
+                case YIELD: Thread.yield(); break;
+                default:    LockSupport.parkNanos(50_000L); break;
+            }
+        }
+
+        static WaitStrategy parse(String value) {
+            return WaitStrategy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // --log-channel=ring (default): Disruptor-style multi-producer/single-consumer ring of preallocated,
+    // mutable Transaction slots. A producer claims a sequence with one getAndIncrement, waits until the
+    // consumer has freed that slot, fills it in place and publishes it by storing its sequence number.
+    // The consumer reads slots in sequence order and releases them in bulk after each drain.
+    // Nothing is allocated on the publish path.
+    static class TransactionRingBuffer implements TransactionChannel {
+        private final Transaction[] slots;
+        private final AtomicLongArray published; // sequence number last published into each slot
+        private final int mask;
+        private final WaitStrategy waitStrategy;
+        private final AtomicLong claimed = new AtomicLong(-1);   // last sequence handed to a producer
+        private final AtomicLong consumed = new AtomicLong(-1);  // last sequence released by the consumer
+
+        public TransactionRingBuffer(int capacity, WaitStrategy waitStrategy) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Ring buffer capacity must be a power of two: " + capacity);
+            }
+            this.slots = new Transaction[capacity];
+            this.published = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            this.waitStrategy = waitStrategy;
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Transaction();
+                published.set(i, -1);
+            }
+        }
+
+        @Override
+        public void publish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+            long seq = claimed.incrementAndGet();
+            long wrapPoint = seq - slots.length;
+            while (consumed.get() < wrapPoint) {
+                waitStrategy.idle(); // full: wait for the consumer to release this slot
+            }
+            int index = (int) seq & mask;
+            slots[index].set(type, fromAccount, toAccount, amountCents, success, message);
+            published.lazySet(index, seq);
+        }
+
+        // Claims a sequence by CAS only while its slot is already free, so a full ring fails instead of waiting
+        @Override
+        public boolean tryPublish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+            while (true) {
+                long last = claimed.get();
+                if (last + 1 - slots.length > consumed.get()) return false;
+                if (claimed.compareAndSet(last, last + 1)) {
+                    int index = (int) (last + 1) & mask;
+                    slots[index].set(type, fromAccount, toAccount, amountCents, success, message);
+                    published.lazySet(index, last + 1);
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public int drain(TransactionHandler handler, int max, long timeoutMillis) throws IOException, InterruptedException {
+            long next = consumed.get() + 1;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (published.get((int) next & mask) != next) {
+                if (System.nanoTime() - deadline >= 0) return 0;
+                if (Thread.interrupted()) throw new InterruptedException();
+                waitStrategy.idle();
+            }
+            int count = 0;
+            try {
+                while (count < max && published.get((int) next & mask) == next) {
+                    handler.accept(slots[(int) next & mask]);
+                    next++;
+                    count++;
+                }
+            } finally {
+                consumed.lazySet(next - 1);
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isEmpty() { return claimed.get() == consumed.get(); }
+
+        @Override
+        public long depth() { return Math.max(0, claimed.get() - consumed.get()); }
+    }
+
+    // What a publisher does when the channel is full: --overflow=block|drop|spill[:FILE]|sample:N
+    //   block   wait for the logger (back-pressure; the original behaviour of the ring buffer). A logger whose
+    //           file failed keeps draining and discards, so waiting always ends (TransactionLogWriter.discard)
+    //   drop    discard the transaction and count it
+    //   spill   append it to an overflow file in the transactions.log format instead (default transactions.overflow)
+    //   sample  keep one in N overflowing transactions (waiting for room), drop and count the rest
+    static final class OverflowPolicy {
+        enum Mode { BLOCK, DROP, SPILL, SAMPLE }
+        final Mode mode;
+        final Path spillFile;
+        final int sampleEvery;
+
+        private OverflowPolicy(Mode mode, Path spillFile, int sampleEvery) {
+            this.mode = mode;
+            this.spillFile = spillFile;
+            this.sampleEvery = sampleEvery;
+        }
+
+        static OverflowPolicy parse(String value) {
+            String v = value.trim();
+            String lower = v.toLowerCase(Locale.ROOT);
+            if (lower.equals("block")) return new OverflowPolicy(Mode.BLOCK, null, 0);
+            if (lower.equals("drop")) return new OverflowPolicy(Mode.DROP, null, 0);
+            if (lower.equals("spill")) return new OverflowPolicy(Mode.SPILL, Paths.get("transactions.overflow"), 0);
+            if (lower.startsWith("spill:")) return new OverflowPolicy(Mode.SPILL, Paths.get(v.substring(6)), 0);
+            if (lower.startsWith("sample:")) {
+                int n = Integer.parseInt(v.substring(7));
+                if (n < 1) throw new IllegalArgumentException("Sample rate must be at least 1: " + value);
+                return new OverflowPolicy(Mode.SAMPLE, null, n);
+            }
+            throw new IllegalArgumentException("Unknown overflow policy: " + value);
+        }
+
+        @Override
+        public String toString() {
+            switch (mode) {
+                case SPILL:  return "spill:" + spillFile;
+                case SAMPLE: return "sample:" + sampleEvery;
+                default:     return mode.toString().toLowerCase(Locale.ROOT);
+            }
+        }
+    }
+
+    // Applies an OverflowPolicy in front of a bounded channel and measures it: queue depth, consumer lag
+    // (publish timestamp to the logger handling the transaction) and what the policy did. Publishers only
+    // pay for the policy when tryPublish finds the channel full.
+    static class OverflowChannel implements TransactionChannel {
+        private final TransactionChannel channel;
+        private final OverflowPolicy policy;
+        private final BufferedWriter spill; // guarded by spillLock
+        // Not synchronized: spilling is blocking file I/O and must not pin a virtual thread's carrier
+        private final ReentrantLock spillLock = new ReentrantLock();
+        final LongAdder waited = new LongAdder();  // publishes that had to wait for room
+        final LongAdder dropped = new LongAdder();
+        final LongAdder spilled = new LongAdder();
+        private final AtomicLong overflowed = new AtomicLong(); // for sampling
+        final LatencyHistogram lag = new LatencyHistogram();
+        private volatile long maxDepth; // written by the consumer thread only
+
+        OverflowChannel(TransactionChannel channel, OverflowPolicy policy) throws IOException {
+            this.channel = channel;
+            this.policy = policy;
+            this.spill = policy.mode == OverflowPolicy.Mode.SPILL
+                ? Files.newBufferedWriter(policy.spillFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+                : null;
+        }
+
+        @Override
+        public void publish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+            if (channel.tryPublish(type, fromAccount, toAccount, amountCents, success, message)) return;
+            switch (policy.mode) {
+                case DROP:
+                    dropped.increment();
+                    return;
+                case SPILL:
+                    spill(new Transaction(type, fromAccount, toAccount, amountCents, success, message));
+                    return;
+                case SAMPLE:
+                    if (overflowed.getAndIncrement() % policy.sampleEvery != 0) {
+                        dropped.increment();
+                        return;
+                    }
+                    break; // the sampled transaction waits for room
+                default:
+                    break;
+            }
+            waited.increment();
+            channel.publish(type, fromAccount, toAccount, amountCents, success, message);
+        }
+
+        private void spill(Transaction tx) {
+            spillLock.lock();
+            try {
+                spill.write(tx.toString());
+                spill.newLine();
+                spilled.increment();
+            } catch (IOException e) {
+                dropped.increment(); // the overflow file failing must not stop the workers
+            } finally {
+                spillLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean tryPublish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+            return channel.tryPublish(type, fromAccount, toAccount, amountCents, success, message);
+        }
+
+        @Override
+        public int drain(TransactionHandler handler, int max, long timeoutMillis) throws IOException, InterruptedException {
+            long depth = channel.depth();
+            if (depth > maxDepth) maxDepth = depth;
+            return channel.drain(tx -> {
+                lag.record(Transaction.nowEpochNanos() - tx.epochNanos);
+                handler.accept(tx);
+            }, max, timeoutMillis);
+        }
+
+        @Override public boolean isEmpty() { return channel.isEmpty(); }
+        @Override public long depth() { return channel.depth(); }
+        long maxDepth() { return maxDepth; }
+
+        // After the logger has stopped
+        void close() throws IOException {
+            if (spill != null) {
+                spillLock.lock();
+                try {
+                    spill.close();
+                } finally {
+                    spillLock.unlock();
+                }
+            }
+        }
+
+        String report() {
+            return String.format("Log channel: overflow=%s, max depth %d, %d publishes waited, %d dropped, %d spilled; consumer lag %s",
+                policy, maxDepth, waited.sum(), dropped.sum(), spilled.sum(), StripedLatencyRecorder.summary(lag));
+        }
+    }
+
+    /* ---------- Logger thread (consumer) ---------- */
+    interface TransactionLogWriter extends Runnable {
+        // stop once the queue has been drained
+        void shutdown();
+
+        // The I/O error that stopped the log being written, or null
+        String failure();
+
+        // Transactions drained and thrown away after the failure
+        long discarded();
+
+        // After the log file fails the logger keeps draining until shutdown, so that publishers on a bounded
+        // channel (--overflow=block) never wait for a consumer that is gone. Returns how many were discarded.
+        static long discard(TransactionChannel channel, BooleanSupplier running) throws InterruptedException {
+            long discarded = 0;
+            while (running.getAsBoolean() || !channel.isEmpty()) {
+                try {
+                    discarded += channel.drain(tx -> { }, 4096, 100);
+                } catch (IOException e) {
+                    // nothing is written any more, so nothing can fail
+                }
+            }
+            return discarded;
+        }
+    }
+
+    static class TransactionLogger implements TransactionLogWriter {
+        private final TransactionChannel channel;
+        private final String logFile;
+        private volatile boolean running = true;
+        private volatile String failure;
+        private volatile long discarded;
+
+        public TransactionLogger(TransactionChannel channel, String logFile) {
+            this.channel = channel;
+            this.logFile = logFile;
+        }
+
+        @Override
+        public void shutdown() { running = false; }
+
+        @Override public String failure() { return failure; }
+        @Override public long discarded() { return discarded; }
+
+        @Override
+        public void run() {
+            try (BufferedWriter bw = new BufferedWriter(new FileWriter(logFile, true))) {
+                while (running || !channel.isEmpty()) {
+                    channel.drain(tx -> {
+                        bw.write(tx.toString());
+                        bw.newLine();
+                    }, 1024, 500);
+                }
+                bw.flush();
+            } catch (IOException e) {
+                failure = e.getMessage();
+                System.err.println("Logger error: " + e.getMessage() + "; discarding transactions until shutdown");
+                try {
+                    discarded = TransactionLogWriter.discard(channel, () -> running);
+                } catch (InterruptedException ie) {
+                    System.err.println("Logger interrupted");
+                }
+            } catch (InterruptedException e) {
+                System.err.println("Logger error: " + e.getMessage());
+            }
+            System.out.println("TransactionLogger stopped.");
+        }
+    }
+
+    // When the binary logger forces written records to disk: --fsync=batch | interval:<ms> | none
+    static final class FsyncPolicy {
+        enum Mode { PER_BATCH, INTERVAL, NONE }
+        final Mode mode;
+        final long intervalMillis;
+
+        private FsyncPolicy(Mode mode, long intervalMillis) {
+            this.mode = mode;
+            this.intervalMillis = intervalMillis;
+        }
+
+        static FsyncPolicy parse(String value) {
+            String v = value.trim().toLowerCase(Locale.ROOT);
+            if (v.equals("batch")) return new FsyncPolicy(Mode.PER_BATCH, 0);
+            if (v.equals("none")) return new FsyncPolicy(Mode.NONE, 0);
+            if (v.startsWith("interval:")) return new FsyncPolicy(Mode.INTERVAL, Long.parseLong(v.substring(9)));
+            throw new IllegalArgumentException("Unknown fsync policy: " + value);
+        }
+
+        @Override
+        public String toString() {
+            return mode == Mode.INTERVAL ? "interval:" + intervalMillis : mode.toString();
+        }
+    }
+
+    // Fixed-width binary log layout. File header: int magic, short version, short record size.
+    // Each record is RECORD_SIZE bytes:
+    //   0  long epochNanos      8  long amountCents
+    //  16  byte type           17  byte success (0/1)   18  short reserved
+    //  20  from  (16 bytes)    36  to (16 bytes)        52  message (44 bytes)
+    // Text fields are Latin-1, zero padded and truncated to their width; null is stored as empty.
+    static final class BinaryLogFormat {
+        static final int MAGIC = 0x54584C47; // "TXLG"
+        static final short VERSION = 1;
+        static final int HEADER_SIZE = 8;
+        static final int RECORD_SIZE = 96;
+        static final int ID_WIDTH = 16;
+        static final int MESSAGE_WIDTH = 44;
+
+        static void writeHeader(ByteBuffer buf) {
+            buf.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE);
+        }
+
+        static void checkHeader(ByteBuffer buf) throws IOException {
+            if (buf.getInt() != MAGIC || buf.getShort() != VERSION || buf.getShort() != RECORD_SIZE) {
+                throw new IOException("Not a version " + VERSION + " binary transaction log");
+            }
+        }
+
+        static void encode(Transaction tx, ByteBuffer buf) {
+            buf.putLong(tx.epochNanos);
+            buf.putLong(tx.amountCents);
+            buf.put((byte) tx.type.ordinal());
+            buf.put((byte) (tx.success ? 1 : 0));
+            buf.putShort((short) 0);
+            putText(buf, tx.fromAccount, ID_WIDTH);
+            putText(buf, tx.toAccount, ID_WIDTH);
+            putText(buf, tx.message, MESSAGE_WIDTH);
+        }
+
+        static void decode(ByteBuffer buf, Transaction into) {
+            into.epochNanos = buf.getLong();
+            into.amountCents = buf.getLong();
+            into.type = Transaction.Type.values()[buf.get()];
+            into.success = buf.get() != 0;
+            buf.getShort();
+            into.fromAccount = getText(buf, ID_WIDTH);
+            into.toAccount = getText(buf, ID_WIDTH);
+            into.message = getText(buf, MESSAGE_WIDTH);
+        }
+
+        // Decodes one record into a transactions.log text line
+        static String render(ByteBuffer buf) {
+            Transaction tx = new Transaction();
+            decode(buf, tx);
+            return tx.toString();
+        }
+
+        private static void putText(ByteBuffer buf, String text, int width) {
+            int n = text == null ? 0 : Math.min(text.length(), width);
+            for (int i = 0; i < n; i++) {
+                char c = text.charAt(i);
+                buf.put((byte) (c < 256 ? c : '?'));
+            }
+            for (int i = n; i < width; i++) {
+                buf.put((byte) 0);
+            }
+        }
+
+        private static String getText(ByteBuffer buf, int width) {
+            char[] chars = new char[width];
+            int n = 0;
+            for (int i = 0; i < width; i++) {
+                byte b = buf.get();
+                if (b != 0 && n == i) chars[n++] = (char) (b & 0xFF);
+            }
+            return n == 0 ? null : new String(chars, 0, n);
+        }
+    }
+
+    // Binary logger (--log-format=binary): drains the channel in batches, encodes each batch into one
+    // direct buffer and writes it with a single FileChannel write (group commit), then fsyncs per policy.
+    static class BinaryTransactionLogger implements TransactionLogWriter {
+        private static final int MAX_BATCH = 4096;
+
+        private final TransactionChannel channel;
+        private final Path logFile;
+        private final FsyncPolicy fsync;
+        private volatile boolean running = true;
+        private volatile String failure;
+        private volatile long discarded;
+
+        public BinaryTransactionLogger(TransactionChannel channel, Path logFile, FsyncPolicy fsync) {
+            this.channel = channel;
+            this.logFile = logFile;
+            this.fsync = fsync;
+        }
+
+        @Override
+        public void shutdown() { running = false; }
+
+        @Override public String failure() { return failure; }
+        @Override public long discarded() { return discarded; }
+
+        @Override
+        public void run() {
+            long pollMillis = fsync.mode == FsyncPolicy.Mode.INTERVAL ? Math.max(1, fsync.intervalMillis) : 500;
+            ByteBuffer buf = ByteBuffer.allocateDirect(MAX_BATCH * BinaryLogFormat.RECORD_SIZE);
+            try (FileChannel ch = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+                openLog(ch, buf);
+                boolean unsynced = false;
+                long lastSync = System.nanoTime();
+                while (running || !channel.isEmpty()) {
+                    buf.clear();
+                    if (channel.drain(tx -> BinaryLogFormat.encode(tx, buf), MAX_BATCH, pollMillis) > 0) {
+                        buf.flip();
+                        while (buf.hasRemaining()) ch.write(buf);
+                        unsynced = true;
+                    }
+                    boolean due = fsync.mode == FsyncPolicy.Mode.PER_BATCH
+                        || (fsync.mode == FsyncPolicy.Mode.INTERVAL
+                            && System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(fsync.intervalMillis));
+                    if (unsynced && due) {
+                        ch.force(false);
+                        unsynced = false;
+                        lastSync = System.nanoTime();
+                    }
+                }
+                ch.force(false);
+            } catch (IOException e) {
+                failure = e.getMessage();
+                System.err.println("Logger error: " + e.getMessage() + "; discarding transactions until shutdown");
+                try {
+                    discarded = TransactionLogWriter.discard(channel, () -> running);
+                } catch (InterruptedException ie) {
+                    System.err.println("Logger interrupted");
+                }
+            } catch (InterruptedException e) {
+                System.err.println("Logger error: " + e.getMessage());
+            }
+            System.out.println("BinaryTransactionLogger stopped.");
+        }
+
+        // Writes the header into a new file, or validates it and positions after the last whole record
+        private static void openLog(FileChannel ch, ByteBuffer buf) throws IOException {
+            buf.clear();
+            if (ch.size() == 0) {
+                BinaryLogFormat.writeHeader(buf);
+                buf.flip();
+                while (buf.hasRemaining()) ch.write(buf);
+                return;
+            }
+            buf.limit(BinaryLogFormat.HEADER_SIZE);
+            while (buf.hasRemaining() && ch.read(buf) > 0) { }
+            buf.flip();
+            if (buf.remaining() < BinaryLogFormat.HEADER_SIZE) {
+                throw new IOException("Binary transaction log is missing its header");
+            }
+            BinaryLogFormat.checkHeader(buf);
+            long records = (ch.size() - BinaryLogFormat.HEADER_SIZE) / BinaryLogFormat.RECORD_SIZE;
+            long end = BinaryLogFormat.HEADER_SIZE + records * BinaryLogFormat.RECORD_SIZE;
+            ch.truncate(end); // drop a torn record left by a crash
+            ch.position(end);
+        }
+    }
+
+    // Renders a binary log back to the transactions.log text format:
+    //   java bank.MultiThreadedBankSimulator --render=transactions.bin [--out=transactions.txt]
+    static class BinaryLogRenderer {
+        static void render(Path binaryLog, PrintStream out) throws IOException {
+            try (FileChannel ch = FileChannel.open(binaryLog, StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(1024 * BinaryLogFormat.RECORD_SIZE);
+                buf.limit(BinaryLogFormat.HEADER_SIZE);
+                while (buf.hasRemaining() && ch.read(buf) > 0) { }
+                buf.flip();
+                if (buf.remaining() < BinaryLogFormat.HEADER_SIZE) {
+                    throw new IOException("Binary transaction log is missing its header");
+                }
+                BinaryLogFormat.checkHeader(buf);
+                buf.clear();
+                while (ch.read(buf) > 0) {
+                    buf.flip();
+                    while (buf.remaining() >= BinaryLogFormat.RECORD_SIZE) {
+                        out.println(BinaryLogFormat.render(buf));
+                    }
+                    buf.compact();
+                }
+                if (buf.position() > 0) {
+                    System.err.println("Ignoring torn record of " + buf.position() + " bytes at end of " + binaryLog);
+                }
+            }
+            out.flush();
+        }
+
+        public static void main(String[] args) throws IOException {
+            Options opts = Options.parse(args);
+            Path in = Paths.get(opts.get("render", "transactions.bin"));
+            if (opts.has("out")) {
+                try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(opts.get("out", ""))))) {
+                    render(in, out);
+                }
+            } else {
+                render(in, System.out);
+            }
+        }
+    }
+
+    /* ---------- Replay ---------- */
+    // --replay=LOG[,LOG...] re-applies a recorded transaction log to a fresh account store and checks the
+    // result against recorded balances:
+    //   java bank.MultiThreadedBankSimulator --record-balances=run ...        (start from an empty transactions.log)
+    //   java bank.MultiThreadedBankSimulator --replay=transactions.log --initial=run/initial.csv --expect=run/final.csv
+    // Logs are read one record at a time; text and binary logs are told apart by the binary header, and a
+    // spill file (--overflow=spill) can be listed after the log. Each successful operation becomes a compact
+    // op (from, to, amount). Accounts linked by transfers are grouped with union-find, and the resulting
+    // partitions are independent, so they are replayed in parallel, each in log order.
+    // The log is in publish order, which can differ slightly from the order operations took effect: a
+    // withdrawal may be logged before the deposit that funded it. A debit the fresh store cannot cover yet is
+    // deferred, together with later debits of that account, until a credit arrives. Debits still waiting at
+    // the end are reported as unfunded. All of this is per partition, so the result does not depend on the
+    // thread count.
+    // Interest is logged as one aggregate record per tick (to "ALL"), so it cannot be replayed per account:
+    // with interest in the log, each account may exceed its replayed balance, and the excesses must add up to
+    // the logged interest exactly.
+    // Replay is memory-bound: partitions are only known once the whole log has been read, so every op is held
+    // in memory until then (16 bytes each, plus 4 for the partition order, and up to twice that while the
+    // arrays grow). A log of 100M operations needs a heap of a few GB; split longer histories with
+    // --record-balances runs rather than replaying them in one go.
+    static final class LogReplay {
+        interface LogSource extends Closeable {
+            // Fills into with the next record (epochNanos is not parsed from text); false at the end
+            boolean next(Transaction into) throws IOException;
+        }
+
+        static LogSource open(Path path) throws IOException {
+            try (InputStream in = Files.newInputStream(path)) {
+                byte[] magic = in.readNBytes(4);
+                if (magic.length == 4 && ByteBuffer.wrap(magic).getInt() == BinaryLogFormat.MAGIC) {
+                    return new BinaryLogSource(path);
+                }
+            }
+            return new TextLogSource(path);
+        }
+
+        static final class TextLogSource implements LogSource {
+            private final BufferedReader reader;
+            private final Path path;
+            private long lineNumber;
+
+            TextLogSource(Path path) throws IOException {
+                this.reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+                this.path = path;
+            }
+
+            @Override
+            public boolean next(Transaction into) throws IOException {
+                String line;
+                do {
+                    line = reader.readLine();
+                    if (line == null) return false;
+                    lineNumber++;
+                } while (line.isEmpty());
+                try {
+                    parse(line, into);
+                } catch (RuntimeException e) {
+                    throw new IOException(path + ":" + lineNumber + ": cannot parse '" + line + "'", e);
+                }
+                return true;
+            }
+
+            // The Transaction.format layout: "<instant> | TYPE | from=X -> to=Y | 12.34 | SUCCESS | message"
+            static void parse(String line, Transaction into) {
+                int typeAt = line.indexOf(" | ") + 3;
+                int accountsAt = line.indexOf(" | ", typeAt) + 3;
+                int amountAt = line.indexOf(" | ", accountsAt) + 3;
+                int statusAt = line.indexOf(" | ", amountAt) + 3;
+                int messageAt = line.indexOf(" | ", statusAt) + 3;
+                if (typeAt < 3 || accountsAt < 3 || amountAt < 3 || statusAt < 3 || messageAt < 3) {
+                    throw new IllegalArgumentException("missing fields");
+                }
+                int arrow = line.indexOf(" -> to=", accountsAt);
+                if (!line.startsWith("from=", accountsAt) || arrow < 0) throw new IllegalArgumentException("bad accounts");
+                into.epochNanos = 0;
+                into.type = Transaction.Type.valueOf(line.substring(typeAt, accountsAt - 3));
+                into.fromAccount = nullable(line.substring(accountsAt + 5, arrow));
+                into.toAccount = nullable(line.substring(arrow + 7, amountAt - 3));
+                into.amountCents = parseCents(line, amountAt, statusAt - 3);
+                into.success = line.startsWith("SUCCESS", statusAt);
+                into.message = line.substring(messageAt);
+            }
+
+            private static String nullable(String s) { return s.equals("null") ? null : s; }
+
+            // "%.2f" text to cents without going through double
+            static long parseCents(String s, int from, int to) {
+                boolean negative = s.charAt(from) == '-';
+                long units = 0;
+                int fraction = -1;
+                for (int i = negative ? from + 1 : from; i < to; i++) {
+                    char c = s.charAt(i);
+                    if (c == '.') {
+                        fraction = 0;
+                    } else if (c >= '0' && c <= '9') {
+                        units = units * 10 + (c - '0');
+                        if (fraction >= 0) fraction++;
+                    } else {
+                        throw new IllegalArgumentException("bad amount");
+                    }
+                }
+                if (fraction != 2) throw new IllegalArgumentException("amount needs two decimals");
+                return negative ? -units : units;
+            }
+
+            @Override
+            public void close() throws IOException { reader.close(); }
+        }
+
+        static final class BinaryLogSource implements LogSource {
+            private final FileChannel ch;
+            private final ByteBuffer buf = ByteBuffer.allocateDirect(1024 * BinaryLogFormat.RECORD_SIZE);
+            private final Path path;
+
+            BinaryLogSource(Path path) throws IOException {
+                this.ch = FileChannel.open(path, StandardOpenOption.READ);
+                this.path = path;
+                buf.limit(BinaryLogFormat.HEADER_SIZE);
+                while (buf.hasRemaining() && ch.read(buf) > 0) { }
+                buf.flip();
+                BinaryLogFormat.checkHeader(buf);
+                buf.clear().flip();
+            }
+
+            @Override
+            public boolean next(Transaction into) throws IOException {
+                if (buf.remaining() < BinaryLogFormat.RECORD_SIZE) {
+                    buf.compact();
+                    while (buf.position() < BinaryLogFormat.RECORD_SIZE && ch.read(buf) > 0) { }
+                    buf.flip();
+                    if (buf.remaining() < BinaryLogFormat.RECORD_SIZE) {
+                        if (buf.hasRemaining()) {
+                            System.err.println("Ignoring torn record of " + buf.remaining() + " bytes at end of " + path);
+                        }
+                        return false;
+                    }
+                }
+                BinaryLogFormat.decode(buf, into);
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException { ch.close(); }
+        }
+
+        // Successful operations in log order, as parallel arrays; from/to are store indexes, -1 for outside
+        private int[] from = new int[1024];
+        private int[] to = new int[1024];
+        private long[] amount = new long[1024];
+        private int ops;
+        private int[] parent = new int[64]; // union-find over store indexes
+
+        private final AccountListLedger store;
+        private long failedRecords, batchSummaries, interestRecords, interestCents;
+
+        LogReplay(AccountKind kind) {
+            this.store = new AccountListLedger(kind, "Replay", InterestSchedule.NONE);
+        }
+
+        int account(String accountId, long initialBalanceCents) {
+            int index = store.indexOf(accountId);
+            if (index >= 0) return index;
+            index = store.openAccount(accountId, initialBalanceCents);
+            if (index == parent.length) parent = Arrays.copyOf(parent, index * 2);
+            parent[index] = index;
+            return index;
+        }
+
+        private int find(int a) {
+            while (parent[a] != a) {
+                parent[a] = parent[parent[a]];
+                a = parent[a];
+            }
+            return a;
+        }
+
+        private void add(int fromIndex, int toIndex, long amountCents) {
+            if (ops == from.length) {
+                from = Arrays.copyOf(from, ops * 2);
+                to = Arrays.copyOf(to, ops * 2);
+                amount = Arrays.copyOf(amount, ops * 2);
+            }
+            from[ops] = fromIndex;
+            to[ops] = toIndex;
+            amount[ops] = amountCents;
+            ops++;
+            if (fromIndex >= 0 && toIndex >= 0) {
+                int a = find(fromIndex), b = find(toIndex);
+                if (a != b) parent[Math.max(a, b)] = Math.min(a, b);
+            }
+        }
+
+        // Batch records: a summary, then one "from=<account> -> to=NET" leg per touched account with its
+        // signed net amount. The summary carries nothing to re-apply.
+        void read(LogSource source) throws IOException {
+            Transaction tx = new Transaction();
+            while (source.next(tx)) {
+                if (tx.type == Transaction.Type.BATCH && !"NET".equals(tx.toAccount)) {
+                    batchSummaries++;
+                    continue;
+                }
+                if (!tx.success) {
+                    failedRecords++;
+                    continue;
+                }
+                switch (tx.type) {
+                    case DEPOSIT:
+                        if ("ALL".equals(tx.toAccount)) {
+                            interestRecords++;
+                            interestCents += tx.amountCents;
+                        } else {
+                            add(-1, account(tx.toAccount, 0), tx.amountCents);
+                        }
+                        break;
+                    case WITHDRAW:
+                        add(account(tx.fromAccount, 0), -1, tx.amountCents);
+                        break;
+                    case TRANSFER:
+                        add(account(tx.fromAccount, 0), account(tx.toAccount, 0), tx.amountCents);
+                        break;
+                    case BATCH:
+                        if (tx.amountCents > 0) {
+                            add(-1, account(tx.fromAccount, 0), tx.amountCents);
+                        } else if (tx.amountCents < 0) {
+                            add(account(tx.fromAccount, 0), -1, -tx.amountCents);
+                        }
+                        break;
+                }
+            }
+        }
+
+        private boolean apply(int op) {
+            try {
+                if (from[op] < 0) store.deposit(to[op], amount[op]);
+                else if (to[op] < 0) store.withdraw(from[op], amount[op]);
+                else store.transfer(from[op], to[op], amount[op]);
+                return true;
+            } catch (InsufficientFundsException e) {
+                return false;
+            }
+        }
+
+        // Replays one partition's ops in log order; returns {deferred, unfunded}
+        private long[] replayPartition(int[] order, int start, int end) {
+            Map<Integer, ArrayDeque<Integer>> waiting = new HashMap<>(); // per account, debits in log order
+            long deferred = 0;
+            for (int k = start; k < end; k++) {
+                int op = order[k];
+                ArrayDeque<Integer> queue = from[op] >= 0 ? waiting.get(from[op]) : null;
+                if (queue != null) {
+                    queue.add(op); // an earlier debit of this account is still waiting
+                    deferred++;
+                } else if (apply(op)) {
+                    if (to[op] >= 0) release(to[op], waiting);
+                } else {
+                    waiting.computeIfAbsent(from[op], a -> new ArrayDeque<>()).add(op);
+                    deferred++;
+                }
+            }
+            long unfunded = 0;
+            for (ArrayDeque<Integer> queue : waiting.values()) unfunded += queue.size();
+            return new long[] { deferred, unfunded };
+        }
+
+        // A credit to account may fund its waiting debits, whose credits may fund others in turn
+        private void release(int account, Map<Integer, ArrayDeque<Integer>> waiting) {
+            ArrayDeque<Integer> credited = new ArrayDeque<>();
+            credited.push(account);
+            while (!credited.isEmpty()) {
+                int a = credited.pop();
+                ArrayDeque<Integer> queue = waiting.get(a);
+                while (queue != null && !queue.isEmpty() && apply(queue.peek())) {
+                    int op = queue.poll();
+                    if (to[op] >= 0) credited.push(to[op]);
+                }
+                if (queue != null && queue.isEmpty()) waiting.remove(a);
+            }
+        }
+
+        // Partitions by union-find root, largest first, on a pool of threads; returns {partitions, deferred, unfunded}
+        long[] execute(int threads) throws InterruptedException, ExecutionException {
+            int accounts = store.size();
+            int[] opsPerRoot = new int[accounts + 1];
+            int[] rootOf = new int[ops];
+            for (int op = 0; op < ops; op++) {
+                rootOf[op] = find(from[op] >= 0 ? from[op] : to[op]);
+                opsPerRoot[rootOf[op] + 1]++;
+            }
+            List<int[]> partitions = new ArrayList<>(); // {start, end}
+            for (int r = 0; r < accounts; r++) {
+                if (opsPerRoot[r + 1] > 0) partitions.add(new int[] { opsPerRoot[r], opsPerRoot[r] + opsPerRoot[r + 1] });
+                opsPerRoot[r + 1] += opsPerRoot[r]; // now the start of root r + 1
+            }
+            int[] next = Arrays.copyOf(opsPerRoot, accounts);
+            int[] order = new int[ops];
+            for (int op = 0; op < ops; op++) order[next[rootOf[op]]++] = op; // stable: log order per partition
+            partitions.sort((x, y) -> Integer.compare(y[1] - y[0], x[1] - x[0]));
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<long[]>> results = new ArrayList<>();
+                for (int[] p : partitions) results.add(pool.submit(() -> replayPartition(order, p[0], p[1])));
+                long deferred = 0, unfunded = 0;
+                for (Future<long[]> f : results) {
+                    long[] r = f.get();
+                    deferred += r[0];
+                    unfunded += r[1];
+                }
+                return new long[] { partitions.size(), deferred, unfunded };
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        // Returns the number of mismatching accounts (see the class comment for logs with interest)
+        long verify(Map<String, Long> expected, PrintStream out) {
+            long mismatches = 0;
+            long excess = 0;
+            for (Map.Entry<String, Long> e : expected.entrySet()) {
+                int index = store.indexOf(e.getKey());
+                long replayed = index >= 0 ? store.balance(index) : 0;
+                long diff = e.getValue() - replayed;
+                excess += diff;
+                if (diff != 0 && (interestCents == 0 || diff < 0)) {
+                    if (mismatches++ < 10) {
+                        out.printf("  %s: expected %.2f, replayed %.2f%n", e.getKey(), e.getValue() / 100.0, replayed / 100.0);
+                    }
+                }
+            }
+            for (int i = 0; i < store.size(); i++) {
+                if (!expected.containsKey(store.accountId(i))) {
+                    if (mismatches++ < 10) out.printf("  %s: in the log but not in the expected balances%n", store.accountId(i));
+                }
+            }
+            if (excess != interestCents) {
+                out.printf("  balances exceed the replay by %.2f in total, logged interest is %.2f%n", excess / 100.0, interestCents / 100.0);
+                mismatches++;
+            }
+            return mismatches;
+        }
+
+        // "account,balance_cents" lines after a header; the --record-balances format
+        static void writeBalances(Path file, Ledger ledger, LedgerSnapshot cut) throws IOException {
+            try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                w.write("account,balance_cents");
+                w.newLine();
+                for (int i = 0; i < cut.balances.length; i++) {
+                    w.write(ledger.accountId(i) + "," + cut.balances[i]);
+                    w.newLine();
+                }
+            }
+        }
+
+        static Map<String, Long> readBalances(Path file) throws IOException {
+            Map<String, Long> balances = new LinkedHashMap<>();
+            try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line = r.readLine(); // header
+                while ((line = r.readLine()) != null) {
+                    if (line.isEmpty()) continue;
+                    int comma = line.lastIndexOf(',');
+                    balances.put(line.substring(0, comma), Long.parseLong(line.substring(comma + 1).trim()));
+                }
+            }
+            return balances;
+        }
+
+        static boolean run(Options opts) throws Exception {
+            int threads = opts.getInt("threads", Runtime.getRuntime().availableProcessors());
+            LogReplay replay = new LogReplay(AccountKind.parse(opts.get("account", "locking")));
+            if (opts.has("initial")) {
+                for (Map.Entry<String, Long> e : readBalances(Paths.get(opts.get("initial", ""))).entrySet()) {
+                    replay.account(e.getKey(), e.getValue());
+                }
+            }
+            long parseStart = System.nanoTime();
+            for (String log : opts.get("replay", "transactions.log").split(",")) {
+                try (LogSource source = open(Paths.get(log.trim()))) {
+                    replay.read(source);
+                }
+            }
+            long executeStart = System.nanoTime();
+            long[] result = replay.execute(threads);
+            long executeNanos = System.nanoTime() - executeStart;
+
+            System.out.printf("Replayed %d operations on %d accounts: %d partitions on %d threads%n",
+                replay.ops, replay.store.size(), result[0], threads);
+            System.out.printf("  parse %.1f ms, execute %.1f ms (%.0f ops/sec)%n", (executeStart - parseStart) / 1e6,
+                executeNanos / 1e6, replay.ops * 1e9 / Math.max(1, executeNanos));
+            System.out.printf("  skipped: %d failed records, %d batch summaries; %d interest records totalling %.2f%n",
+                replay.failedRecords, replay.batchSummaries, replay.interestRecords, replay.interestCents / 100.0);
+            System.out.printf("  %d debits deferred behind log order, %d never funded%n", result[1], result[2]);
+            if (!opts.has("expect")) return result[2] == 0;
+            long mismatches = replay.verify(readBalances(Paths.get(opts.get("expect", ""))), System.out);
+            System.out.println(mismatches == 0
+                ? "Verified against " + opts.get("expect", "") + ": every account matches"
+                : "Verification against " + opts.get("expect", "") + " FAILED: " + mismatches + " mismatches");
+            return mismatches == 0 && result[2] == 0;
+        }
+    }
+
+    /* ---------- Transaction analytics (fraud / velocity rules) ---------- */
+    // Sliding-window aggregates over a ring of time buckets. Adding an event clears the buckets that slid out
+    // and keeps running sums, so the cost is O(1) amortized and memory is fixed per window.
+    static final class SlidingWindow {
+        private final long bucketNanos;
+        private final long[] counts;
+        private final long[] amounts;
+        private final long[] flagged;  // events the caller marked, e.g. large withdrawals
+        private long head = Long.MIN_VALUE; // newest bucket number seen
+        private long count, amount, flaggedCount;
+
+        SlidingWindow(int buckets, long bucketNanos) {
+            this.bucketNanos = bucketNanos;
+            this.counts = new long[buckets];
+            this.amounts = new long[buckets];
+            this.flagged = new long[buckets];
+        }
+
+        // Events older than the window (out of order by more than its length) are ignored
+        void add(long timeNanos, long amountCents, boolean flag) {
+            long bucket = Math.floorDiv(timeNanos, bucketNanos);
+            advance(bucket);
+            if (bucket <= head - counts.length) return;
+            int i = (int) Math.floorMod(bucket, (long) counts.length);
+            counts[i]++;
+            amounts[i] += amountCents;
+            count++;
+            amount += amountCents;
+            if (flag) {
+                flagged[i]++;
+                flaggedCount++;
+            }
+        }
+
+        private void advance(long bucket) {
+            if (bucket <= head) return;
+            long clear = head == Long.MIN_VALUE ? counts.length : Math.min(bucket - head, counts.length);
+            for (long b = bucket - clear + 1; b <= bucket; b++) {
+                int i = (int) Math.floorMod(b, (long) counts.length);
+                count -= counts[i];
+                amount -= amounts[i];
+                flaggedCount -= flagged[i];
+                counts[i] = amounts[i] = flagged[i] = 0;
+            }
+            head = bucket;
+        }
+
+        long count() { return count; }
+        long amount() { return amount; }
+        long flagged() { return flaggedCount; }
+    }
+
+    // Per-account state of the analytics stage: a one-second window of 100 ms buckets, a one-minute window
+    // of 1 s buckets (large withdrawals are its flagged events) and which rules are currently breached
+    static final class AccountActivity {
+        final String accountId;
+        final SlidingWindow second = new SlidingWindow(10, 100_000_000L);
+        final SlidingWindow minute = new SlidingWindow(60, 1_000_000_000L);
+        int breached; // bit r set while rule r holds
+
+        AccountActivity(String accountId) { this.accountId = accountId; }
+    }
+
+    // A condition on an account's windows, checked after every event recorded for it. A hit is emitted when
+    // the condition starts to hold; it re-arms once the condition has cleared.
+    interface FraudRule {
+        String name();
+        boolean holds(AccountActivity activity);
+        String describe(AccountActivity activity);
+
+        static FraudRule maxCountPerSecond(long limit) {
+            return rule("velocity-count", a -> a.second.count() > limit,
+                a -> a.second.count() + " transactions in the last second (limit " + limit + ")");
+        }
+
+        static FraudRule maxAmountPerMinute(long limitCents) {
+            return rule("velocity-amount", a -> a.minute.amount() > limitCents,
+                a -> String.format(Locale.ROOT, "%.2f moved in the last minute (limit %.2f)", a.minute.amount() / 100.0, limitCents / 100.0));
+        }
+
+        static FraudRule largeWithdrawalBurst(long largeCents, long limit) {
+            return rule("withdrawal-burst", a -> a.minute.flagged() >= limit,
+                a -> String.format(Locale.ROOT, "%d withdrawals of %.2f or more in the last minute", a.minute.flagged(), largeCents / 100.0));
+        }
+
+        static FraudRule rule(String name, Predicate<AccountActivity> holds,
+                              Function<AccountActivity, String> describe) {
+            return new FraudRule() {
+                @Override public String name() { return name; }
+                @Override public boolean holds(AccountActivity activity) { return holds.test(activity); }
+                @Override public String describe(AccountActivity activity) { return describe.apply(activity); }
+            };
+        }
+    }
+
+    static final class RuleHit {
+        final long epochNanos; // of the event that triggered it
+        final String rule;
+        final String accountId;
+        final String detail;
+
+        RuleHit(long epochNanos, String rule, String accountId, String detail) {
+            this.epochNanos = epochNanos;
+            this.rule = rule;
+            this.accountId = accountId;
+            this.detail = detail;
+        }
+
+        @Override
+        public String toString() {
+            return Transaction.toInstant(epochNanos) + " | " + rule + " | " + accountId + " | " + detail;
+        }
+    }
+
+    // Second consumer of the transaction stream (--fraud). The logger thread copies each transaction it
+    // drains into a bounded single-producer ring of event records, dropping (and counting) instead of waiting
+    // when the ring is full, so the stage can never slow the logger and through it the workers. The
+    // stage's own thread keeps AccountActivity per account and runs the rules; hits go to a listener.
+    // Tracked accounts are capped (--fraud-max-accounts), so total memory is bounded as well: each one keeps
+    // two sliding windows of about 1.9 KB, so the default of 65536 accounts stays near 120 MB.
+    static final class FraudStage implements Runnable {
+        private final List<FraudRule> rules;
+        private final Consumer<RuleHit> hits;
+        private final long largeWithdrawalCents;
+        private final int maxAccounts;
+        private final Map<String, AccountActivity> activity = new HashMap<>(); // stage thread only
+
+        // Event ring: written by the logger thread only, read by the stage thread only
+        private final long[] times;
+        private final long[] amounts;
+        private final Transaction.Type[] types;
+        private final String[] accounts;
+        private final boolean[] successes;
+        private final int mask;
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong read = new AtomicLong();
+
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder untracked = new LongAdder();
+        private final LongAdder hitCount = new LongAdder();
+        private final LatencyHistogram lag = new LatencyHistogram(); // transaction timestamp to rules evaluated
+        private volatile boolean running = true;
+
+        FraudStage(List<FraudRule> rules, long largeWithdrawalCents, int capacity, int maxAccounts,
+                   Consumer<RuleHit> hits) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Fraud stage capacity must be a power of two: " + capacity);
+            }
+            if (rules.size() > Integer.SIZE) throw new IllegalArgumentException("At most 32 rules");
+            this.rules = rules;
+            this.largeWithdrawalCents = largeWithdrawalCents;
+            this.maxAccounts = maxAccounts;
+            this.hits = hits;
+            this.times = new long[capacity];
+            this.amounts = new long[capacity];
+            this.types = new Transaction.Type[capacity];
+            this.accounts = new String[capacity];
+            this.successes = new boolean[capacity];
+            this.mask = capacity - 1;
+        }
+
+        // The account an event is charged to: the one money leaves, or for deposits the one it enters.
+        // Interest and batch summaries name no single customer account and are skipped.
+        private static String accountOf(Transaction tx) {
+            switch (tx.type) {
+                case DEPOSIT:  return "ALL".equals(tx.toAccount) ? null : tx.toAccount;
+                case WITHDRAW:
+                case TRANSFER: return tx.fromAccount;
+                default:       return null;
+            }
+        }
+
+        // Logger thread; never blocks
+        void offer(Transaction tx) {
+            String account = accountOf(tx);
+            if (account == null) return;
+            long seq = written.get();
+            if (seq - read.get() > mask) {
+                dropped.increment();
+                return;
+            }
+            int i = (int) seq & mask;
+            times[i] = tx.epochNanos;
+            amounts[i] = tx.amountCents;
+            types[i] = tx.type;
+            accounts[i] = account;
+            successes[i] = tx.success;
+            written.lazySet(seq + 1);
+        }
+
+        // Wraps a channel so that whatever its consumer drains is offered to this stage as well
+        TransactionChannel tap(TransactionChannel channel) {
+            return new TransactionChannel() {
+                @Override
+                public void publish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+                    channel.publish(type, fromAccount, toAccount, amountCents, success, message);
+                }
+
+                @Override
+                public boolean tryPublish(Transaction.Type type, String fromAccount, String toAccount, long amountCents, boolean success, String message) {
+                    return channel.tryPublish(type, fromAccount, toAccount, amountCents, success, message);
+                }
+
+                @Override
+                public int drain(TransactionHandler handler, int max, long timeoutMillis) throws IOException, InterruptedException {
+                    return channel.drain(tx -> {
+                        handler.accept(tx);
+                        offer(tx);
+                    }, max, timeoutMillis);
+                }
+
+                @Override public boolean isEmpty() { return channel.isEmpty(); }
+                @Override public long depth() { return channel.depth(); }
+            };
+        }
+
+        void shutdown() { running = false; }
+
+        @Override
+        public void run() {
+            long next = read.get();
+            while (running || next != written.get()) {
+                long available = written.get();
+                if (next == available) {
+                    LockSupport.parkNanos(100_000L);
+                    continue;
+                }
+                for (; next != available; next++) {
+                    int i = (int) next & mask;
+                    process(times[i], amounts[i], types[i], accounts[i], successes[i]);
+                    accounts[i] = null;
+                }
+                read.lazySet(next);
+            }
+        }
+
+        // Failed attempts count towards velocity; only money actually moved counts towards amounts
+        private void process(long epochNanos, long amountCents, Transaction.Type type, String accountId, boolean success) {
+            AccountActivity a = activity.get(accountId);
+            if (a == null) {
+                if (activity.size() >= maxAccounts) {
+                    untracked.increment();
+                    return;
+                }
+                a = new AccountActivity(accountId);
+                activity.put(accountId, a);
+            }
+            long moved = success ? amountCents : 0;
+            boolean large = success && type == Transaction.Type.WITHDRAW && amountCents >= largeWithdrawalCents;
+            a.second.add(epochNanos, moved, false);
+            a.minute.add(epochNanos, moved, large);
+            for (int r = 0; r < rules.size(); r++) {
+                FraudRule rule = rules.get(r);
+                boolean holds = rule.holds(a);
+                boolean was = (a.breached & (1 << r)) != 0;
+                if (holds && !was) {
+                    a.breached |= 1 << r;
+                    hitCount.increment();
+                    hits.accept(new RuleHit(epochNanos, rule.name(), accountId, rule.describe(a)));
+                } else if (!holds && was) {
+                    a.breached &= ~(1 << r);
+                }
+            }
+            lag.record(Transaction.nowEpochNanos() - epochNanos);
+        }
+
+        String report() {
+            return String.format("Fraud rules: %d hits on %d accounts; %d events dropped, %d untracked; lag %s",
+                hitCount.sum(), activity.size(), dropped.sum(), untracked.sum(), StripedLatencyRecorder.summary(lag));
+        }
+    }
+
+    /* ---------- Durability ---------- */
+    // Write-ahead log of balance mutations (--wal=DIR). A record is one or two per-account deltas; deltas
+    // commute, so recovery only has to sum them per account. It loads the latest snapshot and replays the
+    // WAL written after it in parallel, each thread owning one partition of the accounts.
+    //   wal-<segment>.log         header + fixed-size records; every snapshot cut starts a new segment
+    //   snapshot-<segment>.snap   all balances as of the start of that segment
+    // Segments and snapshots older than the newest snapshot are deleted once it is on disk, so recovery
+    // reads at most one snapshot interval of WAL however long the history is.
+    static final class WalFormat {
+        static final int MAGIC = 0x4257414C;          // "BWAL"
+        static final int SNAPSHOT_MAGIC = 0x42534E50; // "BSNP"
+        static final short VERSION = 1;
+        static final int HEADER_SIZE = 8;
+        // Record: int account, long delta, int account (NO_ACCOUNT if unused), long delta, int crc32 of the above.
+        // A settlement batch is a BATCH_HEADER record (delta = number of records that follow) and then its
+        // net deltas two per record; recovery applies the batch only if all of them made it to disk.
+        static final int RECORD_SIZE = 28;
+        static final int NO_ACCOUNT = -1;
+        static final int BATCH_HEADER = -2;
+
+        static Path segment(Path dir, int segment) { return dir.resolve(String.format("wal-%08d.log", segment)); }
+        static Path snapshot(Path dir, int segment) { return dir.resolve(String.format("snapshot-%08d.snap", segment)); }
+
+        static void writeHeader(ByteBuffer buf) {
+            buf.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE);
+        }
+
+        // buf must be a heap buffer with room for a record
+        static void encode(ByteBuffer buf, CRC32 crc, int account, long delta, int otherAccount, long otherDelta) {
+            int start = buf.position();
+            buf.putInt(account).putLong(delta).putInt(otherAccount).putLong(otherDelta);
+            crc.reset();
+            crc.update(buf.array(), buf.arrayOffset() + start, RECORD_SIZE - 4);
+            buf.putInt((int) crc.getValue());
+        }
+
+        // Segment numbers of the files named <prefix><number><suffix> in dir, ascending
+        static List<Integer> list(Path dir, String prefix, String suffix) throws IOException {
+            List<Integer> found = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+                for (Path f : files) {
+                    String name = f.getFileName().toString();
+                    found.add(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())));
+                }
+            }
+            Collections.sort(found);
+            return found;
+        }
+
+        // First segment number above every WAL segment and snapshot already in dir (0 if there are none).
+        // A fresh start uses it when no snapshot is readable, so it never collides with a leftover segment.
+        static int nextSegment(Path dir) throws IOException {
+            int next = 0;
+            for (int s : list(dir, "wal-", ".log")) next = Math.max(next, s + 1);
+            for (int s : list(dir, "snapshot-", ".snap")) next = Math.max(next, s + 1);
+            return next;
+        }
+
+        // Written to a temp file, forced and renamed, so a snapshot file is either complete or absent
+        static void writeSnapshot(Path dir, int segment, String[] accountIds, long[] balances) throws IOException {
+            Path tmp = dir.resolve("snapshot.tmp");
+            CRC32 crc = new CRC32();
+            try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc)));
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeShort(VERSION);
+                out.writeInt(segment);
+                out.writeInt(accountIds.length);
+                for (int i = 0; i < accountIds.length; i++) {
+                    out.writeUTF(accountIds[i]);
+                    out.writeLong(balances[i]);
+                }
+                out.flush();
+                new DataOutputStream(file).writeInt((int) crc.getValue()); // trailer, outside the checksum
+                file.getChannel().force(true);
+            }
+            Files.move(tmp, snapshot(dir, segment), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        static WalRecovery readSnapshot(Path file) throws IOException {
+            CRC32 crc = new CRC32();
+            try (InputStream raw = new BufferedInputStream(Files.newInputStream(file))) {
+                DataInputStream in = new DataInputStream(new CheckedInputStream(raw, crc));
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readShort() != VERSION) {
+                    throw new IOException("Not a version " + VERSION + " snapshot: " + file);
+                }
+                int segment = in.readInt();
+                String[] ids = new String[in.readInt()];
+                long[] balances = new long[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = in.readUTF();
+                    balances[i] = in.readLong();
+                }
+                int expected = (int) crc.getValue();
+                if (new DataInputStream(raw).readInt() != expected) {
+                    throw new IOException("Checksum mismatch in " + file);
+                }
+                return new WalRecovery(ids, balances, segment);
+            }
+        }
+    }
+
+    // Appenders fill a buffer under a short lock; the writer thread swaps it for an empty one and writes it
+    // out, so many mutations share one write and (under --fsync=batch) one force. With the batch policy a
+    // mutation is acknowledged only once its record is forced; otherwise it is acknowledged immediately.
+    static final class WriteAheadLog {
+        private static final int BUFFER_RECORDS = 8192;
+
+        private final Path dir;
+        private final FsyncPolicy fsync;
+        private final ReentrantLock lock = new ReentrantLock(); // buffers and sequence numbers
+        private final Condition appended = lock.newCondition();
+        private final Condition written = lock.newCondition();
+        private final ReentrantLock ioLock = new ReentrantLock(); // channel and segment; taken before lock
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer active = ByteBuffer.allocate(BUFFER_RECORDS * WalFormat.RECORD_SIZE);
+        private ByteBuffer spare = ByteBuffer.allocate(BUFFER_RECORDS * WalFormat.RECORD_SIZE);
+        private long appendedSeq;
+        private long writtenSeq;
+        private volatile IOException failure;
+        private volatile boolean running = true;
+        private FileChannel channel;
+        private int segment;
+        private final Thread writer;
+
+        WriteAheadLog(Path dir, int segment, FsyncPolicy fsync) throws IOException {
+            this.dir = dir;
+            this.fsync = fsync;
+            this.segment = segment;
+            this.channel = openSegment(segment);
+            this.writer = new Thread(this::writeLoop, "WalWriter");
+            writer.start();
+        }
+
+        private FileChannel openSegment(int segment) throws IOException {
+            FileChannel ch = FileChannel.open(WalFormat.segment(dir, segment), StandardOpenOption.CREATE_NEW,
+                                              StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(WalFormat.HEADER_SIZE);
+            WalFormat.writeHeader(header);
+            header.flip();
+            while (header.hasRemaining()) ch.write(header);
+            return ch;
+        }
+
+        // Returns the record's sequence number for awaitDurable
+        long append(int account, long delta, int otherAccount, long otherDelta) {
+            lock.lock();
+            try {
+                while (!active.hasRemaining() && failure == null) {
+                    appended.signal();
+                    written.awaitUninterruptibly(); // writer is a full buffer behind
+                }
+                checkFailure();
+                WalFormat.encode(active, crc, account, delta, otherAccount, otherDelta);
+                appended.signal();
+                return ++appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Header and records go into the buffer in one critical section so nothing interleaves with them
+        long appendBatch(int[] accounts, long[] deltas) {
+            int records = (accounts.length + 1) / 2;
+            int bytes = (records + 1) * WalFormat.RECORD_SIZE;
+            lock.lock();
+            try {
+                if (records == 0) return appendedSeq; // nothing moved, nothing to log
+                while (active.remaining() < bytes && failure == null) {
+                    if (active.position() == 0) {
+                        active = ByteBuffer.allocate(bytes); // bigger than a whole buffer
+                        break;
+                    }
+                    appended.signal();
+                    written.awaitUninterruptibly();
+                }
+                checkFailure();
+                WalFormat.encode(active, crc, WalFormat.BATCH_HEADER, records, WalFormat.NO_ACCOUNT, 0);
+                for (int k = 0; k < accounts.length; k += 2) {
+                    boolean pair = k + 1 < accounts.length;
+                    WalFormat.encode(active, crc, accounts[k], deltas[k],
+                        pair ? accounts[k + 1] : WalFormat.NO_ACCOUNT, pair ? deltas[k + 1] : 0);
+                }
+                appended.signal();
+                appendedSeq += records + 1;
+                return appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void awaitDurable(long seq) {
+            if (fsync.mode != FsyncPolicy.Mode.PER_BATCH) return;
+            lock.lock();
+            try {
+                while (writtenSeq < seq && failure == null) {
+                    written.awaitUninterruptibly();
+                }
+                checkFailure();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void checkFailure() {
+            if (failure != null) throw new UncheckedIOException("Write-ahead log failed", failure);
+        }
+
+        private void writeLoop() {
+            long pollNanos = TimeUnit.MILLISECONDS.toNanos(
+                fsync.mode == FsyncPolicy.Mode.INTERVAL ? Math.max(1, fsync.intervalMillis) : 500);
+            boolean unsynced = false;
+            long lastSync = System.nanoTime();
+            while (true) {
+                lock.lock();
+                try {
+                    if (active.position() == 0) {
+                        if (!running) return;
+                        appended.awaitNanos(pollNanos);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                ioLock.lock();
+                try {
+                    long upTo;
+                    lock.lock();
+                    try {
+                        ByteBuffer full = active;
+                        active = spare;
+                        spare = full;
+                        upTo = appendedSeq;
+                        written.signalAll(); // room in the new active buffer
+                    } finally {
+                        lock.unlock();
+                    }
+                    spare.flip();
+                    unsynced |= spare.hasRemaining();
+                    while (spare.hasRemaining()) channel.write(spare);
+                    spare.clear();
+                    boolean due = fsync.mode == FsyncPolicy.Mode.PER_BATCH
+                        || (fsync.mode == FsyncPolicy.Mode.INTERVAL && System.nanoTime() - lastSync >= pollNanos);
+                    if (unsynced && due) {
+                        channel.force(false);
+                        unsynced = false;
+                        lastSync = System.nanoTime();
+                    }
+                    lock.lock();
+                    try {
+                        writtenSeq = upTo;
+                        written.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                } finally {
+                    ioLock.unlock();
+                }
+            }
+        }
+
+        private void fail(IOException e) {
+            System.err.println("WAL error: " + e.getMessage());
+            lock.lock();
+            try {
+                failure = e;
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Writes out and forces everything appended so far and starts a new segment, returning its number.
+        // The caller must keep mutations out for the duration so the cut is exact.
+        int rotate() throws IOException {
+            ioLock.lock();
+            try {
+                lock.lock();
+                try {
+                    checkFailure();
+                    active.flip();
+                    while (active.hasRemaining()) channel.write(active);
+                    active.clear();
+                    channel.force(false);
+                    channel.close();
+                    channel = openSegment(++segment);
+                    writtenSeq = appendedSeq;
+                    written.signalAll();
+                    return segment;
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                ioLock.unlock();
+            }
+        }
+
+        void close() throws IOException, InterruptedException {
+            lock.lock();
+            try {
+                running = false;
+                appended.signal();
+            } finally {
+                lock.unlock();
+            }
+            writer.join();
+            checkFailure();
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    // Ledger decorator that logs every mutation to a WriteAheadLog and takes periodic snapshots.
+    // A mutation is applied, then logged, then acknowledged; a snapshot excludes mutations (stamped write
+    // lock) while it reads the balances and cuts the WAL, so it never contains an unlogged change.
+    // Interest materialized inside the wrapped ledger is logged through the InterestSchedule listener.
+    // Each mutation holds the lock stripes of its accounts from apply until its record is appended, so
+    // the WAL orders the records of any one account as they were applied and every prefix of it is a
+    // state the ledger actually passed through.
+    static class DurableLedger implements Ledger {
+        private final Ledger ledger;
+        private final Path dir;
+        private final WriteAheadLog wal;
+        private final StampedLock cut = new StampedLock(); // read: one mutation; write: a snapshot cut
+        private final ReentrantLock[] stripes;            // account index & mask; taken in ascending order
+        private final int mask;
+        private final String[] accountIds;
+
+        // Starts from the wrapped ledger's current balances: writes them as the snapshot for firstSegment,
+        // drops anything older, and logs from there on.
+        DurableLedger(Ledger ledger, Path dir, int firstSegment, FsyncPolicy fsync, InterestSchedule interest) throws IOException {
+            this.ledger = ledger;
+            this.dir = dir;
+            this.stripes = new ReentrantLock[Integer.highestOneBit(Math.max(1, Math.min(ledger.size(), 4096) * 2 - 1))];
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new ReentrantLock();
+            this.mask = stripes.length - 1;
+            this.accountIds = new String[ledger.size()];
+            long[] balances = new long[ledger.size()];
+            for (int i = 0; i < accountIds.length; i++) {
+                accountIds[i] = ledger.accountId(i);
+                balances[i] = ledger.balance(i);
+            }
+            WalFormat.writeSnapshot(dir, firstSegment, accountIds, balances);
+            deleteBefore(firstSegment);
+            this.wal = new WriteAheadLog(dir, firstSegment, fsync);
+            interest.setListener((index, cents) -> wal.append(index, cents, WalFormat.NO_ACCOUNT, 0));
+        }
+
+        @Override public int size() { return ledger.size(); }
+        @Override public String accountId(int index) { return ledger.accountId(index); }
+
+        @Override
+        public void deposit(int index, long amountCents) {
+            long seq;
+            long stamp = cut.readLock();
+            ReentrantLock stripe = stripes[index & mask];
+            stripe.lock();
+            try {
+                ledger.deposit(index, amountCents);
+                seq = wal.append(index, amountCents, WalFormat.NO_ACCOUNT, 0);
+            } finally {
+                stripe.unlock();
+                cut.unlockRead(stamp);
+            }
+            wal.awaitDurable(seq);
+        }
+
+        @Override
+        public void withdraw(int index, long amountCents) throws InsufficientFundsException {
+            long seq;
+            long stamp = cut.readLock();
+            ReentrantLock stripe = stripes[index & mask];
+            stripe.lock();
+            try {
+                ledger.withdraw(index, amountCents);
+                seq = wal.append(index, -amountCents, WalFormat.NO_ACCOUNT, 0);
+            } finally {
+                stripe.unlock();
+                cut.unlockRead(stamp);
+            }
+            wal.awaitDurable(seq);
+        }
+
+        @Override
+        public void transfer(int from, int to, long amountCents) throws InsufficientFundsException {
+            long seq;
+            long stamp = cut.readLock();
+            ReentrantLock first = stripes[Math.min(from & mask, to & mask)];
+            ReentrantLock second = stripes[Math.max(from & mask, to & mask)];
+            first.lock();
+            if (second != first) second.lock();
+            try {
+                ledger.transfer(from, to, amountCents);
+                seq = wal.append(from, -amountCents, to, amountCents); // one record, so never half-recovered
+            } finally {
+                if (second != first) second.unlock();
+                first.unlock();
+                cut.unlockRead(stamp);
+            }
+            wal.awaitDurable(seq);
+        }
+
+        // Reads can materialize interest, which is logged, so they stay out of a snapshot cut as well
+        // and hold the account's stripe like any other mutation
+        @Override
+        public long balance(int index) {
+            long stamp = cut.readLock();
+            ReentrantLock stripe = stripes[index & mask];
+            stripe.lock();
+            try {
+                return ledger.balance(index);
+            } finally {
+                stripe.unlock();
+                cut.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public long accrueInterest(int index) {
+            long stamp = cut.readLock();
+            ReentrantLock stripe = stripes[index & mask];
+            stripe.lock();
+            try {
+                return ledger.accrueInterest(index);
+            } finally {
+                stripe.unlock();
+                cut.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public LedgerSnapshot snapshot() {
+            return ledger.snapshot(); // reads only, nothing to log
+        }
+
+        // The net deltas go to the WAL as one framed batch, so recovery applies all of it or none
+        @Override
+        public BatchResult applyBatch(List<Transfer> batch) {
+            BatchResult result;
+            long seq;
+            BitSet held = new BitSet(stripes.length);
+            for (Transfer t : batch) {
+                held.set(t.from & mask);
+                held.set(t.to & mask);
+            }
+            long stamp = cut.readLock();
+            for (int s = held.nextSetBit(0); s >= 0; s = held.nextSetBit(s + 1)) stripes[s].lock();
+            try {
+                result = ledger.applyBatch(batch);
+                seq = wal.appendBatch(result.accounts, result.netCents);
+            } finally {
+                for (int s = held.nextSetBit(0); s >= 0; s = held.nextSetBit(s + 1)) stripes[s].unlock();
+                cut.unlockRead(stamp);
+            }
+            wal.awaitDurable(seq);
+            return result;
+        }
+
+        // Writes a WAL snapshot. Called from one thread at a time (the scheduler, then shutdown). Mutations
+        // pause only while the balances are read and the WAL is cut; the file is written after they resume.
+        void checkpoint() throws IOException {
+            long[] balances = new long[ledger.size()];
+            int segment;
+            long stamp = cut.writeLock();
+            try {
+                for (int i = 0; i < balances.length; i++) {
+                    balances[i] = ledger.balance(i);
+                }
+                segment = wal.rotate();
+            } finally {
+                cut.unlockWrite(stamp);
+            }
+            WalFormat.writeSnapshot(dir, segment, accountIds, balances);
+            deleteBefore(segment);
+        }
+
+        private void deleteBefore(int segment) throws IOException {
+            for (int s : WalFormat.list(dir, "wal-", ".log")) {
+                if (s < segment) Files.deleteIfExists(WalFormat.segment(dir, s));
+            }
+            for (int s : WalFormat.list(dir, "snapshot-", ".snap")) {
+                if (s < segment) Files.deleteIfExists(WalFormat.snapshot(dir, s));
+            }
+        }
+
+        @Override
+        public void shutdown() throws InterruptedException {
+            try {
+                wal.close();
+            } catch (IOException e) {
+                System.err.println("WAL close failed: " + e.getMessage());
+            }
+            ledger.shutdown();
+        }
+    }
+
+    // State rebuilt from a --wal directory: the newest readable snapshot plus every WAL record after it.
+    static final class WalRecovery {
+        final String[] accountIds;
+        final long[] balances;
+        final int segment; // the snapshot's segment, or after recover() the first segment to write next
+        long replayedRecords;
+
+        WalRecovery(String[] accountIds, long[] balances, int segment) {
+            this.accountIds = accountIds;
+            this.balances = balances;
+            this.segment = segment;
+        }
+
+        private WalRecovery(WalRecovery snapshot, int nextSegment) {
+            this(snapshot.accountIds, snapshot.balances, nextSegment);
+        }
+
+        // Deltas for one partition of the accounts, appended by the reader and summed by one replay thread
+        private static final class Deltas {
+            int[] accounts = new int[1024];
+            long[] amounts = new long[1024];
+            int size;
+
+            void add(int account, long amount) {
+                if (size == accounts.length) {
+                    accounts = Arrays.copyOf(accounts, size * 2);
+                    amounts = Arrays.copyOf(amounts, size * 2);
+                }
+                accounts[size] = account;
+                amounts[size++] = amount;
+            }
+        }
+
+        // Returns null when dir holds no snapshot, i.e. nothing to recover
+        static WalRecovery recover(Path dir, int partitions) throws IOException, InterruptedException {
+            List<Integer> snapshots = WalFormat.list(dir, "snapshot-", ".snap");
+            WalRecovery snapshot = null;
+            for (int i = snapshots.size() - 1; i >= 0 && snapshot == null; i--) {
+                try {
+                    snapshot = WalFormat.readSnapshot(WalFormat.snapshot(dir, snapshots.get(i)));
+                } catch (IOException e) {
+                    System.err.println("Skipping unreadable snapshot: " + e.getMessage());
+                }
+            }
+            if (snapshot == null) return null;
+
+            Deltas[] parts = new Deltas[partitions];
+            for (int p = 0; p < partitions; p++) parts[p] = new Deltas();
+            long records = 0;
+            int lastSegment = snapshot.segment;
+            for (int s : WalFormat.list(dir, "wal-", ".log")) {
+                lastSegment = Math.max(lastSegment, s);
+                if (s >= snapshot.segment) {
+                    records += readSegment(WalFormat.segment(dir, s), snapshot.accountIds.length, parts);
+                }
+            }
+
+            // Partitions are disjoint sets of accounts, so the threads never touch the same balance
+            ExecutorService replay = Executors.newFixedThreadPool(partitions);
+            long[] balances = snapshot.balances;
+            for (Deltas part : parts) {
+                replay.execute(() -> {
+                    for (int k = 0; k < part.size; k++) balances[part.accounts[k]] += part.amounts[k];
+                });
+            }
+            replay.shutdown();
+            replay.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+            WalRecovery recovered = new WalRecovery(snapshot, lastSegment + 1);
+            recovered.replayedRecords = records;
+            return recovered;
+        }
+
+        // Buckets a segment's deltas by account partition. A torn or corrupt tail (a crash mid-write) is
+        // truncated away so that segments written after this recovery are not shadowed by it.
+        private static long readSegment(Path file, int accountCount, Deltas[] parts) throws IOException {
+            long records = 0;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.allocate(4096 * WalFormat.RECORD_SIZE);
+                buf.limit(WalFormat.HEADER_SIZE);
+                while (buf.hasRemaining() && ch.read(buf) > 0) { }
+                buf.flip();
+                if (buf.remaining() < WalFormat.HEADER_SIZE || buf.getInt() != WalFormat.MAGIC
+                        || buf.getShort() != WalFormat.VERSION || buf.getShort() != WalFormat.RECORD_SIZE) {
+                    throw new IOException("Not a version " + WalFormat.VERSION + " WAL segment: " + file);
+                }
+                CRC32 crc = new CRC32();
+                Deltas batch = new Deltas(); // records of an open batch, held back until it is complete
+                long batchRemaining = 0;
+                long read = 0;
+                buf.clear();
+                boolean corrupt = false;
+                while (!corrupt && ch.read(buf) > 0) {
+                    buf.flip();
+                    while (buf.remaining() >= WalFormat.RECORD_SIZE) {
+                        crc.reset();
+                        crc.update(buf.array(), buf.arrayOffset() + buf.position(), WalFormat.RECORD_SIZE - 4);
+                        int account = buf.getInt();
+                        long delta = buf.getLong();
+                        int other = buf.getInt();
+                        long otherDelta = buf.getLong();
+                        boolean header = account == WalFormat.BATCH_HEADER && batchRemaining == 0 && delta >= 0;
+                        if (buf.getInt() != (int) crc.getValue() || (!header && (account < 0 || account >= accountCount))
+                                || other < WalFormat.NO_ACCOUNT || other >= accountCount) {
+                            corrupt = true;
+                            break;
+                        }
+                        read++;
+                        if (header) {
+                            batchRemaining = delta;
+                            if (delta == 0) records = read; // an empty batch is complete on its own
+                            continue;
+                        }
+                        Deltas target = batchRemaining > 0 ? batch : null;
+                        if (target != null) {
+                            target.add(account, delta);
+                            if (other != WalFormat.NO_ACCOUNT) target.add(other, otherDelta);
+                            if (--batchRemaining > 0) continue;
+                            for (int k = 0; k < batch.size; k++) {
+                                parts[batch.accounts[k] % parts.length].add(batch.accounts[k], batch.amounts[k]);
+                            }
+                            batch.size = 0;
+                        } else {
+                            parts[account % parts.length].add(account, delta);
+                            if (other != WalFormat.NO_ACCOUNT) parts[other % parts.length].add(other, otherDelta);
+                        }
+                        records = read;
+                    }
+                    buf.compact();
+                }
+                long end = WalFormat.HEADER_SIZE + records * WalFormat.RECORD_SIZE;
+                if (end < ch.size()) {
+                    System.err.println("Truncating " + (ch.size() - end) + " bytes of torn WAL tail in " + file);
+                    ch.truncate(end);
+                }
+            }
+            return records;
+        }
+    }
+
+    /* ---------- Latency metrics ---------- */
+    // HdrHistogram-style log-linear histogram of nanosecond values. A value is bucketed by its highest
+    // set bit and then linearly into 2^(SUB_BITS-1) sub-buckets, so every recorded value is kept to
+    // within ~3% with a fixed, small array. Recording is one atomic increment.
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 6;
+        private static final int HALF = 1 << (SUB_BITS - 1);
+        private static final int BUCKETS = (65 - SUB_BITS) * HALF;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            long v = Math.max(0, value);
+            counts.incrementAndGet(indexOf(v));
+            long m = max.get();
+            while (v > m && !max.compareAndSet(m, v)) m = max.get();
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = other.counts.get(i);
+                if (c != 0) counts.addAndGet(i, c);
+            }
+            long m = other.max.get();
+            long cur = max.get();
+            while (m > cur && !max.compareAndSet(cur, m)) cur = max.get();
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+            return total;
+        }
+
+        long max() { return max.get(); }
+
+        LatencyHistogram copy() {
+            LatencyHistogram h = new LatencyHistogram();
+            h.add(this);
+            return h;
+        }
+
+        // Counts recorded since the earlier cumulative snapshot; max is the top of the highest non-empty bucket
+        LatencyHistogram since(LatencyHistogram earlier) {
+            LatencyHistogram h = new LatencyHistogram();
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = counts.get(i) - earlier.counts.get(i);
+                if (c > 0) {
+                    h.counts.set(i, c);
+                    h.max.set(Math.min(highestEquivalent(i), max.get()));
+                }
+            }
+            return h;
+        }
+
+        // Highest value equivalent to the bucket holding the given percentile (0..100)
+        long percentile(double pct) {
+            long total = count();
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(total * pct / 100.0));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(highestEquivalent(i), max.get());
+            }
+            return max.get();
+        }
+
+        private static int indexOf(long v) {
+            if (v < 2 * HALF) return (int) v;
+            int shift = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS; // >= 1
+            return shift * HALF + (int) (v >>> shift);
+        }
+
+        private static long highestEquivalent(int index) {
+            if (index < 2 * HALF) return index;
+            int shift = index / HALF - 1;
+            long sub = index - (long) shift * HALF;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    // Spreads concurrent recorders over a fixed number of histograms picked by thread id, so memory stays
+    // bounded with 100k virtual threads while platform threads rarely share a stripe.
+    static final class StripedLatencyRecorder {
+        private final LatencyHistogram[] stripes;
+
+        StripedLatencyRecorder() {
+            stripes = new LatencyHistogram[Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1];
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new LatencyHistogram();
+        }
+
+        void record(long nanos) {
+            stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)].record(nanos);
+        }
+
+        LatencyHistogram merged() {
+            LatencyHistogram all = new LatencyHistogram();
+            for (LatencyHistogram h : stripes) all.add(h);
+            return all;
+        }
+
+        static String summary(LatencyHistogram h) {
+            return String.format("p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+                h.percentile(99.9) / 1e3, h.max() / 1e3);
+        }
+    }
+
+    enum OpType { DEPOSIT, WITHDRAW, TRANSFER, INTEREST, BATCH }
+
+    // Per-operation-type latency histograms, plus, for lock-based accounts, how long each operation waited
+    // for its account lock(s) versus how long it held them. Recording goes to striped histograms (see
+    // StripedLatencyRecorder); merging happens only when a snapshot or the final report is taken.
+    // LockingAccount reports through the static hooks, which are no-ops until a BankMetrics is installed.
+    static final class BankMetrics {
+        private static volatile BankMetrics installed;
+
+        private final StripedLatencyRecorder[] ops = recorders();
+        private final StripedLatencyRecorder[] lockWait = recorders();
+        private final StripedLatencyRecorder[] critical = recorders();
+        final LongAdder insufficientFunds = new LongAdder();
+
+        private volatile OverflowChannel channel; // the log channel, for depth and consumer lag
+
+        // cumulative merges at the previous snapshot, for interval deltas
+        private LatencyHistogram[] lastOps, lastWait, lastCritical;
+        private LatencyHistogram lastLag;
+        private final long startedNanos = System.nanoTime();
+
+        private static StripedLatencyRecorder[] recorders() {
+            StripedLatencyRecorder[] r = new StripedLatencyRecorder[OpType.values().length];
+            for (int i = 0; i < r.length; i++) r[i] = new StripedLatencyRecorder();
+            return r;
+        }
+
+        void install() { installed = this; }
+
+        void watchChannel(OverflowChannel channel) { this.channel = channel; }
+
+        static void uninstall() { installed = null; }
+
+        void recordOp(OpType op, long nanos) { ops[op.ordinal()].record(nanos); }
+
+        // Lock hooks: lockRequested() before lock(), lockAcquired() once held, lockReleased() after unlock()
+        static long lockRequested() {
+            return installed == null ? 0 : System.nanoTime();
+        }
+
+        static long lockAcquired(OpType op, long requestedAt) {
+            BankMetrics m = installed;
+            if (m == null || requestedAt == 0) return 0;
+            long now = System.nanoTime();
+            m.lockWait[op.ordinal()].record(now - requestedAt);
+            return now;
+        }
+
+        static void lockReleased(OpType op, long acquiredAt) {
+            BankMetrics m = installed;
+            if (m == null || acquiredAt == 0) return;
+            m.critical[op.ordinal()].record(System.nanoTime() - acquiredAt);
+        }
+
+        private static LatencyHistogram[] merge(StripedLatencyRecorder[] recorders) {
+            LatencyHistogram[] merged = new LatencyHistogram[recorders.length];
+            for (int i = 0; i < recorders.length; i++) merged[i] = recorders[i].merged();
+            return merged;
+        }
+
+        // All client operations (everything except interest ticks) in one histogram
+        LatencyHistogram mergedClientOps() {
+            LatencyHistogram all = new LatencyHistogram();
+            for (OpType op : OpType.values()) {
+                if (op != OpType.INTEREST) all.add(ops[op.ordinal()].merged());
+            }
+            return all;
+        }
+
+        static String csvHeader() {
+            return "elapsed_ms,op,count,p50_us,p99_us,p99.9_us,max_us,lock_wait_p99_us,critical_p99_us,insufficient_funds,lock_conflicts,hot_accounts,"
+                + "log_depth,log_lag_p99_us,log_dropped,log_spilled";
+        }
+
+        // One CSV row per operation type covering the interval since the previous snapshot
+        synchronized void writeSnapshot(PrintStream out) {
+            LatencyHistogram[] nowOps = merge(ops), nowWait = merge(lockWait), nowCritical = merge(critical);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+            OverflowChannel ch = channel;
+            LatencyHistogram nowLag = new LatencyHistogram();
+            if (ch != null) nowLag.add(ch.lag);
+            LatencyHistogram lag = lastLag == null ? nowLag : nowLag.since(lastLag);
+            String channelColumns = ch == null ? ",,," : String.format(Locale.ROOT, "%d,%.1f,%d,%d",
+                ch.depth(), lag.percentile(99) / 1e3, ch.dropped.sum(), ch.spilled.sum());
+            for (OpType op : OpType.values()) {
+                int i = op.ordinal();
+                LatencyHistogram o = lastOps == null ? nowOps[i] : nowOps[i].since(lastOps[i]);
+                LatencyHistogram w = lastWait == null ? nowWait[i] : nowWait[i].since(lastWait[i]);
+                LatencyHistogram c = lastCritical == null ? nowCritical[i] : nowCritical[i].since(lastCritical[i]);
+                out.printf(Locale.ROOT, "%d,%s,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%d,%d,%d,%s%n", elapsedMillis, op, o.count(),
+                    o.percentile(50) / 1e3, o.percentile(99) / 1e3, o.percentile(99.9) / 1e3, o.max() / 1e3,
+                    w.percentile(99) / 1e3, c.percentile(99) / 1e3,
+                    insufficientFunds.sum(), ContentionStats.lockConflicts.sum(), ContentionManager.hotAccounts().size(),
+                    channelColumns);
+            }
+            out.flush();
+            lastLag = nowLag;
+            lastOps = nowOps;
+            lastWait = nowWait;
+            lastCritical = nowCritical;
+        }
+
+        void printReport(PrintStream out) {
+            LatencyHistogram[] o = merge(ops), w = merge(lockWait), c = merge(critical);
+            out.println("Latency by operation (lock wait / critical section only for lock-based accounts):");
+            out.printf("  %-9s %-11s %10s %10s %10s %10s %10s%n", "op", "metric", "count", "p50(us)", "p99(us)", "p99.9(us)", "max(us)");
+            for (OpType op : OpType.values()) {
+                int i = op.ordinal();
+                reportLine(out, op, "total", o[i]);
+                if (w[i].count() > 0) reportLine(out, op, "lock wait", w[i]);
+                if (c[i].count() > 0) reportLine(out, op, "critical", c[i]);
+            }
+            out.printf("Insufficient funds failures: %d, contended lock acquisitions: %d, lock timeouts: 0 (locks never time out)%n",
+                insufficientFunds.sum(), ContentionStats.lockConflicts.sum());
+            out.printf("Hot accounts (lock wait EWMA): %s; deposits combined: %d in %d passes%n",
+                ContentionManager.describe(10), ContentionManager.combinedDeposits.sum(), ContentionManager.combinerPasses.sum());
+            OverflowChannel ch = channel;
+            if (ch != null) out.println(ch.report());
+        }
+
+        private static void reportLine(PrintStream out, OpType op, String metric, LatencyHistogram h) {
+            if (h.count() == 0) return;
+            out.printf("  %-9s %-11s %10d %10.1f %10.1f %10.1f %10.1f%n", op, metric, h.count(),
+                h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3);
+        }
+    }
+
+    /* ---------- Worker tasks ---------- */
+
+    // ATM worker: randomly deposit or withdraw on random accounts
+    static class ATMWorker implements Callable<Integer> {
+        private final Ledger ledger;
+        private final TransactionChannel logChannel;
+        private final BankMetrics metrics;
+        private final Random rng = new Random();
+        private final AtomicInteger successCounter;
+        private final AtomicInteger failCounter;
+        private final int operationsToPerform;
+
+        public ATMWorker(Ledger ledger, TransactionChannel logChannel, BankMetrics metrics,
+                         AtomicInteger successCounter, AtomicInteger failCounter, int operations) {
+            this.ledger = ledger;
+            this.metrics = metrics;
+            this.logChannel = logChannel;
+            this.successCounter = successCounter;
+            this.failCounter = failCounter;
+            this.operationsToPerform = operations;
+        }
+
+        @Override
+        public Integer call() {
+            for (int i = 0; i < operationsToPerform; i++) {
+                int acc = rng.nextInt(ledger.size());
+                String accId = ledger.accountId(acc);
+                boolean deposit = rng.nextBoolean();
+                long amountCents = (rng.nextInt(50) + 1) * 100; // 1.00 - 50.00
+                long start = System.nanoTime();
+                if (deposit) {
+                    ledger.deposit(acc, amountCents);
+                    metrics.recordOp(OpType.DEPOSIT, System.nanoTime() - start);
+                    logChannel.publish(Transaction.Type.DEPOSIT, "EXTERNAL", accId, amountCents, true, "ATM deposit");
+                    successCounter.incrementAndGet();
+                } else {
+                    try {
+                        ledger.withdraw(acc, amountCents);
+                        metrics.recordOp(OpType.WITHDRAW, System.nanoTime() - start);
+                        logChannel.publish(Transaction.Type.WITHDRAW, accId, "EXTERNAL", amountCents, true, "ATM withdraw");
+                        successCounter.incrementAndGet();
+                    } catch (InsufficientFundsException e) {
+                        metrics.recordOp(OpType.WITHDRAW, System.nanoTime() - start);
+                        metrics.insufficientFunds.increment();
+                        logChannel.publish(Transaction.Type.WITHDRAW, accId, "EXTERNAL", amountCents, false, e.getMessage());
+                        failCounter.incrementAndGet();
+                    }
+                }
+                // small random delay
+                try { Thread.sleep(rng.nextInt(20)); } catch (InterruptedException ignored) {}
+            }
+            return operationsToPerform;
+        }
+    }
+
+    // TransferWorker: performs transfers between random accounts
+    static class TransferWorker implements Callable<Integer> {
+        private final Ledger ledger;
+        private final TransactionChannel logChannel;
+        private final BankMetrics metrics;
+        private final Random rng = new Random();
+        private final AtomicInteger successCounter;
+        private final AtomicInteger failCounter;
+        private final int operationsToPerform;
+        private final int batchSize;
+
+        public TransferWorker(Ledger ledger, TransactionChannel logChannel, BankMetrics metrics,
+                              AtomicInteger successCounter, AtomicInteger failCounter, int operations) {
+            this(ledger, logChannel, metrics, successCounter, failCounter, operations, 1);
+        }
+
+        // With batchSize > 1 the transfers are settled through Ledger.applyBatch, batchSize at a time
+        public TransferWorker(Ledger ledger, TransactionChannel logChannel, BankMetrics metrics,
+                              AtomicInteger successCounter, AtomicInteger failCounter, int operations, int batchSize) {
+            this.ledger = ledger;
+            this.metrics = metrics;
+            this.logChannel = logChannel;
+            this.successCounter = successCounter;
+            this.failCounter = failCounter;
+            this.operationsToPerform = operations;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public Integer call() {
+            if (batchSize > 1) {
+                return settleBatches();
+            }
+            for (int i = 0; i < operationsToPerform; i++) {
+                int a = rng.nextInt(ledger.size());
+                int b = rng.nextInt(ledger.size());
+                if (a == b) { i--; continue; } // pick different accounts
+                long amountCents = (rng.nextInt(30) + 1) * 100;
+                long start = System.nanoTime();
+                try {
+                    ledger.transfer(a, b, amountCents);
+                    metrics.recordOp(OpType.TRANSFER, System.nanoTime() - start);
+                    logChannel.publish(Transaction.Type.TRANSFER, ledger.accountId(a), ledger.accountId(b), amountCents, true, "Transfer");
+                    successCounter.incrementAndGet();
+                } catch (InsufficientFundsException e) {
+                    metrics.recordOp(OpType.TRANSFER, System.nanoTime() - start);
+                    metrics.insufficientFunds.increment();
+                    logChannel.publish(Transaction.Type.TRANSFER, ledger.accountId(a), ledger.accountId(b), amountCents, false, e.getMessage());
+                    failCounter.incrementAndGet();
+                }
+                try { Thread.sleep(rng.nextInt(30)); } catch (InterruptedException ignored) {}
+            }
+            return operationsToPerform;
+        }
+
+        // One BATCH log record per batch instead of one record per transfer, followed by one net record per
+        // touched account (from=<account> -> to=NET, signed amount) so that LogReplay can re-apply the batch
+        private int settleBatches() {
+            for (int done = 0; done < operationsToPerform; done += batchSize) {
+                List<Transfer> batch = new ArrayList<>(batchSize);
+                while (batch.size() < Math.min(batchSize, operationsToPerform - done)) {
+                    int a = rng.nextInt(ledger.size());
+                    int b = rng.nextInt(ledger.size());
+                    if (a == b) continue; // pick different accounts
+                    batch.add(new Transfer(a, b, (rng.nextInt(30) + 1) * 100));
+                }
+                long start = System.nanoTime();
+                BatchResult result = ledger.applyBatch(batch);
+                metrics.recordOp(OpType.BATCH, System.nanoTime() - start);
+                int failed = result.failedCount();
+                metrics.insufficientFunds.add(failed);
+                logChannel.publish(Transaction.Type.BATCH, "BATCH", result.accounts.length + " accounts",
+                    result.movedCents, failed == 0, result.applied + " transfers applied, " + failed + " failed");
+                for (int k = 0; k < result.accounts.length; k++) {
+                    if (result.netCents[k] == 0) continue;
+                    logChannel.publish(Transaction.Type.BATCH, ledger.accountId(result.accounts[k]), "NET",
+                        result.netCents[k], true, "Batch net");
+                }
+                successCounter.addAndGet(result.applied);
+                failCounter.addAndGet(failed);
+                try { Thread.sleep(rng.nextInt(30)); } catch (InterruptedException ignored) {}
+            }
+            return operationsToPerform;
+        }
+    }
+
+    /* ---------- Workload profiles ---------- */
+    // Loaded with --workload=FILE (java.util.Properties). Keys and defaults:
+    //   clients=7              simulated clients
+    //   operations=200         operations per client
+    //   loop=closed|open       closed: each client waits for its reply, then thinks; open: fixed arrival rate
+    //   thinkTimeMs=0-20       closed loop think time, uniform in the range
+    //   targetRate=1000        open loop arrival rate in ops/sec, summed over all clients
+    //   skew=uniform|zipf      account selection; zipf makes the lowest account indexes hot
+    //   zipfTheta=0.99         zipf skew, 0 < theta < 1 (higher is more skewed)
+    //   mix=45,35,20           deposit, withdraw, transfer weights
+    //   amountCents=100-5000   operation amount, uniform in the range
+    //   seed=N                 optional; makes every client's random stream reproducible
+    static final class WorkloadProfile {
+        enum Loop { CLOSED, OPEN }
+
+        int clients = 7;
+        int operations = 200;
+        Loop loop = Loop.CLOSED;
+        long minThinkMillis = 0, maxThinkMillis = 20;
+        double targetRate = 1000;
+        boolean zipf = false;
+        double zipfTheta = 0.99;
+        int depositWeight = 45, withdrawWeight = 35, transferWeight = 20;
+        long minAmountCents = 100, maxAmountCents = 5000;
+        Long seed = null;
+
+        static WorkloadProfile load(Path file) throws IOException {
+            Properties p = new Properties();
+            try (Reader in = Files.newBufferedReader(file)) {
+                p.load(in);
+            }
+            WorkloadProfile w = new WorkloadProfile();
+            w.clients = Integer.parseInt(p.getProperty("clients", String.valueOf(w.clients)).trim());
+            w.operations = Integer.parseInt(p.getProperty("operations", String.valueOf(w.operations)).trim());
+            w.loop = Loop.valueOf(p.getProperty("loop", "closed").trim().toUpperCase(Locale.ROOT));
+            long[] think = range(p.getProperty("thinkTimeMs", w.minThinkMillis + "-" + w.maxThinkMillis));
+            w.minThinkMillis = think[0];
+            w.maxThinkMillis = think[1];
+            w.targetRate = Double.parseDouble(p.getProperty("targetRate", String.valueOf(w.targetRate)).trim());
+            w.zipf = p.getProperty("skew", "uniform").trim().equalsIgnoreCase("zipf");
+            w.zipfTheta = Double.parseDouble(p.getProperty("zipfTheta", String.valueOf(w.zipfTheta)).trim());
+            String[] mix = p.getProperty("mix", "45,35,20").split(",");
+            if (mix.length != 3) throw new IllegalArgumentException("mix needs three weights: deposit,withdraw,transfer");
+            w.depositWeight = Integer.parseInt(mix[0].trim());
+            w.withdrawWeight = Integer.parseInt(mix[1].trim());
+            w.transferWeight = Integer.parseInt(mix[2].trim());
+            long[] amount = range(p.getProperty("amountCents", w.minAmountCents + "-" + w.maxAmountCents));
+            w.minAmountCents = amount[0];
+            w.maxAmountCents = amount[1];
+            if (p.getProperty("seed") != null) w.seed = Long.parseLong(p.getProperty("seed").trim());
+
+            if (w.zipf && !(w.zipfTheta > 0 && w.zipfTheta < 1)) {
+                throw new IllegalArgumentException("zipfTheta must be between 0 and 1: " + w.zipfTheta);
+            }
+            if (w.depositWeight + w.withdrawWeight + w.transferWeight <= 0) {
+                throw new IllegalArgumentException("mix weights must not all be zero");
+            }
+            if (w.loop == Loop.OPEN && w.targetRate <= 0) {
+                throw new IllegalArgumentException("open loop needs a positive targetRate");
+            }
+            return w;
+        }
+
+        // "a-b" or a single value "a"
+        private static long[] range(String value) {
+            String[] parts = value.trim().split("-");
+            long lo = Long.parseLong(parts[0].trim());
+            long hi = parts.length > 1 ? Long.parseLong(parts[1].trim()) : lo;
+            if (hi < lo) throw new IllegalArgumentException("Bad range: " + value);
+            return new long[] { lo, hi };
+        }
+
+        AccountSampler sampler(int numAccounts) {
+            return zipf ? new ZipfianSampler(numAccounts, zipfTheta) : rng -> rng.nextInt(numAccounts);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d clients x %d ops, %s loop%s, %s accounts, mix %d/%d/%d",
+                clients, operations, loop.toString().toLowerCase(Locale.ROOT),
+                loop == Loop.OPEN ? " at " + (long) targetRate + " ops/sec" : "",
+                zipf ? "zipf(" + zipfTheta + ")" : "uniform", depositWeight, withdrawWeight, transferWeight);
+        }
+    }
+
+    interface AccountSampler {
+        int next(SplittableRandom rng);
+    }
+
+    // YCSB's Zipfian generator (Gray et al., "Quickly generating billion-record synthetic databases"):
+    // item i is drawn with probability proportional to 1 / (i+1)^theta. Immutable after construction and
+    // shared by all clients; zeta(n) costs O(n) once.
+    static final class ZipfianSampler implements AccountSampler {
+        private final int items;
+        private final double theta, zetaN, alpha, eta, halfPowTheta;
+
+        ZipfianSampler(int items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            double zeta = 0;
+            for (int i = 1; i <= items; i++) zeta += 1.0 / Math.pow(i, theta);
+            this.zetaN = zeta;
+            double zeta2 = 1.0 + 1.0 / Math.pow(2, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetaN);
+            this.halfPowTheta = Math.pow(0.5, theta);
+        }
+
+        @Override
+        public int next(SplittableRandom rng) {
+            double u = rng.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1.0) return 0;
+            if (uz < 1.0 + halfPowTheta) return Math.min(1, items - 1);
+            return (int) Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    // Drives one simulated client through a WorkloadProfile. In the open loop, operations are scheduled at
+    // fixed intervals and latency is measured from the intended start, so a stalled bank is not hidden by
+    // clients that simply stop sending (coordinated omission).
+    static class WorkloadWorker implements Callable<Integer> {
+        private final Ledger ledger;
+        private final TransactionChannel logChannel;
+        private final BankMetrics metrics;
+        private final AtomicInteger successCounter;
+        private final AtomicInteger failCounter;
+        private final WorkloadProfile profile;
+        private final AccountSampler sampler;
+        private final SplittableRandom rng;
+
+        public WorkloadWorker(Ledger ledger, TransactionChannel logChannel, BankMetrics metrics,
+                              AtomicInteger successCounter, AtomicInteger failCounter,
+                              WorkloadProfile profile, AccountSampler sampler, SplittableRandom rng) {
+            this.ledger = ledger;
+            this.logChannel = logChannel;
+            this.metrics = metrics;
+            this.successCounter = successCounter;
+            this.failCounter = failCounter;
+            this.profile = profile;
+            this.sampler = sampler;
+            this.rng = rng;
+        }
+
+        @Override
+        public Integer call() throws InterruptedException {
+            boolean open = profile.loop == WorkloadProfile.Loop.OPEN;
+            long intervalNanos = open ? (long) (1e9 * profile.clients / profile.targetRate) : 0;
+            long nextStart = System.nanoTime() + (open ? rng.nextLong(Math.max(1, intervalNanos)) : 0);
+            int totalWeight = profile.depositWeight + profile.withdrawWeight + profile.transferWeight;
+
+            for (int i = 0; i < profile.operations; i++) {
+                long start;
+                if (open) {
+                    long wait;
+                    while ((wait = nextStart - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                    start = nextStart;
+                    nextStart += intervalNanos;
+                } else {
+                    start = System.nanoTime();
+                }
+
+                int pick = rng.nextInt(totalWeight);
+                long amountCents = profile.minAmountCents + rng.nextLong(profile.maxAmountCents - profile.minAmountCents + 1);
+                int acc = sampler.next(rng);
+                OpType op;
+                if (pick < profile.depositWeight) {
+                    op = OpType.DEPOSIT;
+                    ledger.deposit(acc, amountCents);
+                    logChannel.publish(Transaction.Type.DEPOSIT, "EXTERNAL", ledger.accountId(acc), amountCents, true, "ATM deposit");
+                    successCounter.incrementAndGet();
+                } else if (pick < profile.depositWeight + profile.withdrawWeight || ledger.size() < 2) {
+                    op = OpType.WITHDRAW;
+                    try {
+                        ledger.withdraw(acc, amountCents);
+                        logChannel.publish(Transaction.Type.WITHDRAW, ledger.accountId(acc), "EXTERNAL", amountCents, true, "ATM withdraw");
+                        successCounter.incrementAndGet();
+                    } catch (InsufficientFundsException e) {
+                        logChannel.publish(Transaction.Type.WITHDRAW, ledger.accountId(acc), "EXTERNAL", amountCents, false, e.getMessage());
+                        failCounter.incrementAndGet();
+                        metrics.insufficientFunds.increment();
+                    }
+                } else {
+                    op = OpType.TRANSFER;
+                    int to;
+                    do { to = sampler.next(rng); } while (to == acc);
+                    try {
+                        ledger.transfer(acc, to, amountCents);
+                        logChannel.publish(Transaction.Type.TRANSFER, ledger.accountId(acc), ledger.accountId(to), amountCents, true, "Transfer");
+                        successCounter.incrementAndGet();
+                    } catch (InsufficientFundsException e) {
+                        logChannel.publish(Transaction.Type.TRANSFER, ledger.accountId(acc), ledger.accountId(to), amountCents, false, e.getMessage());
+                        failCounter.incrementAndGet();
+                        metrics.insufficientFunds.increment();
+                    }
+                }
+                metrics.recordOp(op, System.nanoTime() - start);
+
+                if (!open && profile.maxThinkMillis > 0) {
+                    Thread.sleep(profile.minThinkMillis + rng.nextLong(profile.maxThinkMillis - profile.minThinkMillis + 1));
+                }
+            }
+            return profile.operations;
+        }
+    }
+
+    /* ---------- Command line options ---------- */
+    // Parses --key=value (or bare --flag) arguments
+    static class Options {
+        private final Map<String, String> values = new HashMap<>();
+
+        static Options parse(String[] args) {
+            Options opts = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unrecognised argument: " + arg);
+                }
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    opts.values.put(arg.substring(2), "true");
+                } else {
+                    opts.values.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            }
+            return opts;
+        }
+
+        boolean has(String key) { return values.containsKey(key); }
+
+        String get(String key, String defaultValue) { return values.getOrDefault(key, defaultValue); }
+
+        int getInt(String key, int defaultValue) {
+            String v = values.get(key);
+            return v == null ? defaultValue : Integer.parseInt(v.trim());
+        }
+
+        // For counts that are divided by or sized from, e.g. --shards
+        int getPositiveInt(String key, int defaultValue) {
+            int v = getInt(key, defaultValue);
+            if (v < 1) throw new IllegalArgumentException("--" + key + " must be at least 1: " + v);
+            return v;
+        }
+    }
+
+    /* ---------- Benchmarks ---------- */
+    // Run with --bench[=ledger|channel|threads]: ledger implementations under the same random operation mix,
+    // the log channel implementations under a publish-only load, and platform versus virtual worker threads.
+    // The account/logger regression benchmarks are JMH benchmarks under src/jmh (see BenchmarkGate there).
+    static class Benchmarks {
+        interface Op {
+            void run(ThreadLocalRandom rng) throws Exception;
+        }
+
+        // Runs op on the given number of threads for durationMillis and returns operations per second
+        static double measure(int threads, long durationMillis, Op op) throws InterruptedException {
+            LongAdder ops = new LongAdder();
+            AtomicBoolean stop = new AtomicBoolean(false);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Thread w = new Thread(() -> {
+                    ThreadLocalRandom rng = ThreadLocalRandom.current();
+                    long done = 0;
+                    try {
+                        start.await();
+                        while (!stop.get()) {
+                            op.run(rng);
+                            done++;
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Benchmark worker error: " + e);
+                    }
+                    ops.add(done);
+                }, "bench-" + t);
+                workers.add(w);
+                w.start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            Thread.sleep(durationMillis);
+            stop.set(true);
+            for (Thread w : workers) w.join();
+            long elapsed = System.nanoTime() - begin;
+            return ops.sum() * 1e9 / elapsed;
+        }
+
+        // 45% deposit, 45% withdraw, 10% transfer over random accounts
+        static Op ledgerMix(Ledger ledger) {
+            return rng -> {
+                int acc = rng.nextInt(ledger.size());
+                int pick = rng.nextInt(100);
+                long amountCents = (rng.nextInt(50) + 1) * 100;
+                try {
+                    if (pick < 45) {
+                        ledger.deposit(acc, amountCents);
+                    } else if (pick < 90) {
+                        ledger.withdraw(acc, amountCents);
+                    } else {
+                        int other = rng.nextInt(ledger.size());
+                        if (other != acc) ledger.transfer(acc, other, amountCents);
+                    }
+                } catch (InsufficientFundsException ignored) {
+                    // expected under random withdrawals
+                }
+            };
+        }
+
+        static void run(Options opts) throws InterruptedException, IOException {
+            String suite = opts.get("bench", "true");
+            if (suite.equals("true") || suite.equals("ledger")) runLedgers(opts);
+            if (suite.equals("true") || suite.equals("channel")) runChannels(opts);
+            if (suite.equals("true") || suite.equals("threads")) runThreads(opts);
+        }
+
+        static void runLedgers(Options opts) throws InterruptedException {
+            int threads = opts.getInt("threads", Runtime.getRuntime().availableProcessors());
+            long durationMillis = opts.getInt("duration-ms", 2000);
+            int[] accountCounts = { 1, 6, 1024 };
+
+            int shards = opts.getPositiveInt("shards", Runtime.getRuntime().availableProcessors());
+
+            System.out.printf("Ledger throughput, %d threads, %d ms per run%n", threads, durationMillis);
+            System.out.printf("%-10s %10s %16s%n", "ledger", "accounts", "ops/sec");
+            for (int numAccounts : accountCounts) {
+                String[] ids = new String[numAccounts];
+                long[] balances = new long[numAccounts];
+                for (int i = 0; i < numAccounts; i++) {
+                    ids[i] = String.format("A%03d", i + 1);
+                    balances[i] = 1_000_000 * 100L;
+                }
+                for (AccountKind kind : AccountKind.values()) {
+                    report(kind.toString(), numAccounts, threads, durationMillis, buildLedger(kind, ids, balances, "User"));
+                }
+                report("SHARDED", numAccounts, threads, durationMillis, new ShardedLedger(ids, balances, shards));
+                report("OFFHEAP", numAccounts, threads, durationMillis, OffHeapLedger.allocate(ids, balances, "User", InterestSchedule.NONE));
+            }
+        }
+
+        private static void report(String name, int numAccounts, int threads, long durationMillis, Ledger ledger)
+                throws InterruptedException {
+            measure(threads, durationMillis / 4, ledgerMix(ledger)); // warm-up
+            double opsPerSec = measure(threads, durationMillis, ledgerMix(ledger));
+            System.out.printf("%-10s %10d %16.0f%n", name, numAccounts, opsPerSec);
+            ledger.shutdown();
+        }
+
+        // Producers publish a fixed number of events; the run ends when the consumer has drained them all
+        static void runChannels(Options opts) throws InterruptedException, IOException {
+            int producers = opts.getInt("threads", Runtime.getRuntime().availableProcessors());
+            int events = opts.getInt("events", 2_000_000);
+            int ringSize = opts.getInt("ring-size", 1 << 16);
+
+            System.out.printf("%nLog channel throughput, %d producers, %d events per run%n", producers, events);
+            System.out.printf("%-12s %16s %8s %10s%n", "channel", "ops/sec", "GCs", "GC ms");
+            List<String> names = new ArrayList<>(List.of("queue"));
+            for (WaitStrategy w : WaitStrategy.values()) names.add("ring-" + w.name().toLowerCase(Locale.ROOT));
+            for (String name : names) {
+                channelRun(newChannel(name, ringSize), producers, events / 4); // warm-up
+                long gcCount = gcCount(), gcMillis = gcMillis();
+                double opsPerSec = channelRun(newChannel(name, ringSize), producers, events);
+                System.out.printf("%-12s %16.0f %8d %10d%n", name, opsPerSec, gcCount() - gcCount, gcMillis() - gcMillis);
+            }
+        }
+
+        private static TransactionChannel newChannel(String name, int ringSize) {
+            if (name.equals("queue")) return new QueueTransactionChannel();
+            return new TransactionRingBuffer(ringSize, WaitStrategy.parse(name.substring("ring-".length())));
+        }
+
+        private static double channelRun(TransactionChannel channel, int producers, int events)
+                throws InterruptedException, IOException {
+            int perProducer = events / producers;
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < producers; t++) {
+                Thread p = new Thread(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        channel.publish(Transaction.Type.DEPOSIT, "EXTERNAL", "A001", 100, true, "ATM deposit");
+                    }
+                }, "producer-" + t);
+                threads.add(p);
+            }
+            long begin = System.nanoTime();
+            for (Thread p : threads) p.start();
+            long remaining = (long) perProducer * producers;
+            while (remaining > 0) {
+                remaining -= channel.drain(tx -> { }, 4096, 100);
+            }
+            long elapsed = System.nanoTime() - begin;
+            for (Thread p : threads) p.join();
+            return (long) perProducer * producers * 1e9 / elapsed;
+        }
+
+        // The simulator's own ATM/transfer clients (with their think-time sleeps) on a platform pool versus
+        // one virtual thread per client; throughput is completed operations per wall-clock second.
+        static void runThreads(Options opts) throws InterruptedException {
+            int clients = opts.getInt("clients", 10_000);
+            int ops = opts.getInt("ops", 20);
+            int poolSize = opts.getInt("pool-size", 256);
+
+            System.out.printf("%nWorker threads, %d clients x %d operations%n", clients, ops);
+            runClients("platform(" + poolSize + ")", false, poolSize, clients, ops);
+            if (virtualThreadsSupported()) {
+                runClients("virtual", true, poolSize, clients, ops);
+            } else {
+                System.out.println("virtual: not available on this JDK (needs 21+)");
+            }
+        }
+
+        private static void runClients(String name, boolean virtualThreads, int poolSize, int clients, int ops)
+                throws InterruptedException {
+            String[] ids = new String[1024];
+            long[] balances = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = String.format("A%03d", i + 1);
+                balances[i] = 1_000_000 * 100L;
+            }
+            Ledger ledger = buildLedger(AccountKind.LOCKING, ids, balances, "User");
+            TransactionRingBuffer channel = new TransactionRingBuffer(1 << 16, WaitStrategy.PARK);
+            AtomicBoolean draining = new AtomicBoolean(true);
+            Thread consumer = new Thread(() -> {
+                try {
+                    while (draining.get() || !channel.isEmpty()) channel.drain(tx -> { }, 4096, 10);
+                } catch (IOException | InterruptedException ignored) {
+                    // benchmark consumer: nothing to report
+                }
+            }, "bench-consumer");
+            consumer.start();
+
+            BankMetrics metrics = new BankMetrics();
+            AtomicInteger ok = new AtomicInteger(), failed = new AtomicInteger();
+            ExecutorService pool = newWorkerExecutor(virtualThreads, poolSize);
+            long begin = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                pool.submit(i % 7 < 4
+                    ? new ATMWorker(ledger, channel, metrics, ok, failed, ops)
+                    : new TransferWorker(ledger, channel, metrics, ok, failed, ops));
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.HOURS);
+            long elapsed = System.nanoTime() - begin;
+            draining.set(false);
+            consumer.join();
+
+            LatencyHistogram h = metrics.mergedClientOps();
+            System.out.printf("%-15s %10.0f ops/sec  %s%n", name, h.count() * 1e9 / elapsed, StripedLatencyRecorder.summary(h));
+        }
+
+        static long gcCount() {
+            long total = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) total += Math.max(0, gc.getCollectionCount());
+            return total;
+        }
+
+        static long gcMillis() {
+            long total = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) total += Math.max(0, gc.getCollectionTime());
+            return total;
+        }
+    }
+
+    static Ledger buildLedger(AccountKind kind, String[] ids, long[] balances, String ownerPrefix) {
+        return buildLedger(kind, ids, balances, ownerPrefix, InterestSchedule.NONE);
+    }
+
+    static Ledger buildLedger(AccountKind kind, String[] ids, long[] balances, String ownerPrefix, InterestSchedule interest) {
+        AccountListLedger ledger = new AccountListLedger(kind, ownerPrefix, interest);
+        for (int i = 0; i < ids.length; i++) {
+            ledger.openAccount(ids[i], balances[i]);
+        }
+        return ledger;
+    }
+
+    // --thread-kind=virtual runs each simulated client on its own virtual thread (JDK 21+). The factory is looked up
+    // reflectively so this file still compiles and runs on older JDKs, where we fall back to the platform pool.
+    // Everything a client can block on (ReentrantLock, CompletableFuture.join, LockSupport.park, sleep) is a
+    // java.util.concurrent primitive, so waiting unmounts the virtual thread instead of pinning its carrier;
+    // keep it that way (no synchronized around blocking calls) and prefer --wait=park for the ring buffer.
+    static ExecutorService newWorkerExecutor(boolean virtualThreads, int poolSize) {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads are not available on this JDK", e);
+            }
+        }
+        return Executors.newFixedThreadPool(poolSize);
+    }
+
+    // One aggregate DEPOSIT per tick replaces a record per account; toAccount "ALL" marks it as such
+    // (covers everything materialized since the previous record, i.e. ticks up to the current epoch).
+    static void publishAccruedInterest(TransactionChannel channel, InterestSchedule interest) {
+        int epoch = interest.epoch();
+        long[] accrued = interest.drainAccrued();
+        if (accrued[1] == 0) return;
+        channel.publish(Transaction.Type.DEPOSIT, "BANK_INTEREST", "ALL", accrued[0], true,
+            "Interest on " + accrued[1] + " accounts to tick " + epoch);
+    }
+
+    static boolean virtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /* ---------- Main driver ---------- */
+    // Options:
+    //   --account=locking|atomic|striped   account implementation (default locking)
+    //   --mode=accounts|sharded|offheap   shared account list, single-writer shards, or off-heap slots (default accounts)
+    //   --shards=N                 shard count in sharded mode (default: available processors)
+    //   --table=DIR                offheap mode: memory-mapped table in DIR, opened if present (replaced when
+    //                              --wal recovers) and saved on exit
+    //   --accounts=N               number of accounts (default 6)
+    //   --log-format=text|binary   transactions.log text, or batched binary transactions.bin (default text)
+    //   --fsync=batch|interval:<ms>|none   binary logger fsync policy (default batch)
+    //   --log-channel=ring|queue   preallocated ring buffer or LinkedBlockingQueue (default ring)
+    //   --ring-size=N --wait=spin|yield|park   log channel capacity (a power of two for the ring) and ring wait
+    //                              strategy (default 65536, park)
+    //   --overflow=block|drop|spill[:FILE]|sample:N   when the log channel is full (default block, see OverflowPolicy)
+    //   --render=FILE [--out=FILE] print a binary log in text format instead of simulating
+    //   --record-balances=DIR      write DIR/initial.csv before the workers start and DIR/final.csv at the end
+    //   --replay=LOG[,LOG...] [--initial=FILE] [--expect=FILE] [--threads=N] [--account=KIND]
+    //                              re-apply a text or binary log to a fresh store and verify it (see LogReplay)
+    //   --thread-kind=platform|virtual   fixed platform pool, or one virtual thread per client (default platform)
+    //   --clients=N --ops=N --pool-size=N   simulated clients (4:3 ATM:transfer), operations each, platform pool size
+    //   --contention=adaptive|off [--hot-wait-us=N]   flat-combine deposits on hot accounts (default adaptive, 20 us)
+    //   --batch-size=N             transfer workers settle N transfers at a time through Ledger.applyBatch
+    //   --workload=FILE            drive clients from a WorkloadProfile instead of the ATM/transfer workers
+    //   --metrics-csv=FILE --metrics-interval-ms=N   periodic per-operation latency snapshots (default every 1000 ms)
+    //   --interest-period-s=N      seconds between interest ticks (default 10)
+    //   --audit-interval-ms=N      print the money supply from a consistent snapshot every N ms
+    //   --open-accounts-per-s=N    register new (empty) accounts at this rate while workers run (accounts mode)
+    //   --fraud [--fraud-max-per-s=N] [--fraud-max-per-min=AMOUNT] [--fraud-large=AMOUNT] [--fraud-burst=N]
+    //                              velocity rules on the logged stream (defaults 20/s, 5000.00/min, 5 of 40.00+)
+    //   --fraud-max-accounts=N     accounts the fraud rules track at once; later ones go unchecked (default 65536)
+    //   --wal=DIR [--snapshot-interval-s=N]   write-ahead log and snapshots in DIR (default every 30 s); an
+    //                              existing DIR is recovered first and replaces --accounts. --fsync applies too
+    //   --bench[=ledger|channel|threads] [--threads=N] [--duration-ms=N] [--events=N]   run benchmarks instead
+    public static void main(String[] args) throws Exception {
+        Options opts = Options.parse(args);
+        if (opts.has("bench")) {
+            Benchmarks.run(opts);
+            return;
+        }
+        if (opts.has("render")) {
+            BinaryLogRenderer.main(args);
+            return;
+        }
+        if (opts.has("replay")) {
+            if (!LogReplay.run(opts)) System.exit(1);
+            return;
+        }
+        AccountKind accountKind = AccountKind.parse(opts.get("account", "locking"));
+        ContentionManager.enabled = !opts.get("contention", "adaptive").equalsIgnoreCase("off");
+        ContentionManager.hotWaitNanos = opts.getInt("hot-wait-us", 20) * 1000L;
+        String mode = opts.get("mode", "accounts").toLowerCase(Locale.ROOT);
+        boolean sharded = mode.equals("sharded");
+        boolean offHeap = mode.equals("offheap");
+        int shardCount = opts.getPositiveInt("shards", Runtime.getRuntime().availableProcessors());
+        final Path TABLE_DIR = opts.has("table") ? Paths.get(opts.get("table", "")) : null;
+
+        System.out.println("Starting MultiThreadedBankSimulator ("
+            + (sharded ? shardCount + " shards" : offHeap ? "off-heap table" : accountKind + " accounts") + ")...");
+
+        // Simulation parameters
+        final WorkloadProfile WORKLOAD = opts.has("workload") ? WorkloadProfile.load(Paths.get(opts.get("workload", ""))) : null;
+        final int NUM_ACCOUNTS = opts.getInt("accounts", 6);
+        final int INITIAL_BALANCE_CENTS = 10_000 * 100 / 100; // 10_000.00 -> here simpler small amounts
+        final int CLIENTS = WORKLOAD != null ? WORKLOAD.clients : opts.getInt("clients", 7);
+        final int ATM_WORKERS = CLIENTS * 4 / 7;
+        final int TRANSFER_WORKERS = CLIENTS - ATM_WORKERS;
+        final int OPERATIONS_PER_WORKER = opts.getInt("ops", 200);
+        final int POOL_SIZE = opts.getInt("pool-size", Math.min(CLIENTS, 256));
+        boolean virtualRequested = opts.get("thread-kind", "platform").equalsIgnoreCase("virtual");
+        if (virtualRequested && !virtualThreadsSupported()) {
+            System.err.println("Virtual threads need JDK 21+; using a platform thread pool of " + POOL_SIZE + " instead.");
+        }
+        final boolean VIRTUAL_THREADS = virtualRequested && virtualThreadsSupported();
+        final int INTEREST_PERIOD_SECONDS = opts.getInt("interest-period-s", 10);
+        final double INTEREST_RATE = 0.001; // 0.1% per tick
+        final int INTEREST_SWEEP_SLICES = 100; // background accrual is spread over the period in this many steps
+        final boolean BINARY_LOG = opts.get("log-format", "text").equalsIgnoreCase("binary");
+        final String LOG_FILE = BINARY_LOG ? "transactions.bin" : "transactions.log";
+
+        // Counters and data structures
+        AtomicInteger successCounter = new AtomicInteger(0);
+        AtomicInteger failCounter = new AtomicInteger(0);
+        // Bounded either way; when it is full, the overflow policy decides whether publishers wait
+        int channelCapacity = opts.getInt("ring-size", 1 << 16);
+        OverflowChannel logChannel = new OverflowChannel(opts.get("log-channel", "ring").equalsIgnoreCase("queue")
+            ? new QueueTransactionChannel(channelCapacity)
+            : new TransactionRingBuffer(channelCapacity, WaitStrategy.parse(opts.get("wait", "park"))),
+            OverflowPolicy.parse(opts.get("overflow", "block")));
+
+        // Recover accounts from the write-ahead log, or create them
+        final Path WAL_DIR = opts.has("wal") ? Paths.get(opts.get("wal", "")) : null;
+        WalRecovery recovered = null;
+        int firstSegment = 0;
+        if (WAL_DIR != null) {
+            Files.createDirectories(WAL_DIR);
+            long recoveryStart = System.nanoTime();
+            int partitions = Runtime.getRuntime().availableProcessors();
+            recovered = WalRecovery.recover(WAL_DIR, partitions);
+            if (recovered != null) {
+                System.out.printf("Recovered %d accounts from %s: %d WAL records replayed on %d threads in %.1f ms%n",
+                    recovered.accountIds.length, WAL_DIR, recovered.replayedRecords, partitions,
+                    (System.nanoTime() - recoveryStart) / 1e6);
+                firstSegment = recovered.segment;
+            } else {
+                // Leftover segments cannot be replayed without a snapshot to start from; the new snapshot
+                // supersedes them and they are deleted with the rest of the older history
+                firstSegment = WalFormat.nextSegment(WAL_DIR);
+                if (firstSegment > 0) {
+                    System.err.printf("No readable snapshot in %s; starting over at WAL segment %d%n", WAL_DIR, firstSegment);
+                }
+            }
+        }
+        String[] accountIds;
+        long[] initialBalances;
+        if (recovered != null) {
+            accountIds = recovered.accountIds;
+            initialBalances = recovered.balances;
+        } else {
+            accountIds = new String[NUM_ACCOUNTS];
+            initialBalances = new long[NUM_ACCOUNTS];
+            for (int i = 1; i <= NUM_ACCOUNTS; i++) {
+                // For demonstration, give different balances
+                accountIds[i - 1] = String.format("A%03d", i);
+                initialBalances[i - 1] = (5_000 + i * 500) * 100L; // amounts in cents
+            }
+        }
+        InterestSchedule interest = new InterestSchedule();
+        Ledger baseLedger;
+        if (sharded) {
+            baseLedger = new ShardedLedger(accountIds, initialBalances, shardCount, interest);
+        } else if (offHeap && TABLE_DIR != null && recovered == null && OffHeapLedger.exists(TABLE_DIR)) {
+            long openStart = System.nanoTime();
+            baseLedger = OffHeapLedger.open(TABLE_DIR, interest);
+            System.out.printf("Opened %d accounts from %s in %.1f ms%n",
+                baseLedger.size(), TABLE_DIR, (System.nanoTime() - openStart) / 1e6);
+        } else if (offHeap) {
+            baseLedger = OffHeapLedger.create(TABLE_DIR, accountIds, initialBalances, "User", interest);
+        } else {
+            baseLedger = buildLedger(accountKind, accountIds, initialBalances, "User", interest);
+        }
+        DurableLedger durable = WAL_DIR == null ? null : new DurableLedger(baseLedger, WAL_DIR,
+            firstSegment, FsyncPolicy.parse(opts.get("fsync", "batch")), interest);
+        Ledger ledger = durable != null ? durable : baseLedger;
+        final Path BALANCES_DIR = opts.has("record-balances") ? Paths.get(opts.get("record-balances", "")) : null;
+        if (BALANCES_DIR != null) {
+            Files.createDirectories(BALANCES_DIR);
+            LogReplay.writeBalances(BALANCES_DIR.resolve("initial.csv"), ledger, ledger.snapshot());
+        }
+
+        // Fraud rules run on their own thread, fed by the logger after it has handled each transaction
+        FraudStage fraud = null;
+        Thread fraudThread = null;
+        if (opts.has("fraud")) {
+            long largeCents = Math.round(Double.parseDouble(opts.get("fraud-large", "40")) * 100);
+            fraud = new FraudStage(List.of(
+                FraudRule.maxCountPerSecond(opts.getInt("fraud-max-per-s", 20)),
+                FraudRule.maxAmountPerMinute(Math.round(Double.parseDouble(opts.get("fraud-max-per-min", "5000")) * 100)),
+                FraudRule.largeWithdrawalBurst(largeCents, opts.getInt("fraud-burst", 5))),
+                largeCents, 1 << 16, opts.getPositiveInt("fraud-max-accounts", 1 << 16), hit -> System.out.println("[Fraud] " + hit));
+            fraudThread = new Thread(fraud, "FraudStage");
+            fraudThread.start();
+        }
+
+        // Start logger thread; it is the single consumer of the channel all actors publish to
+        TransactionChannel loggerChannel = fraud != null ? fraud.tap(logChannel) : logChannel;
+        TransactionLogWriter txLogger = BINARY_LOG
+            ? new BinaryTransactionLogger(loggerChannel, Paths.get(LOG_FILE), FsyncPolicy.parse(opts.get("fsync", "batch")))
+            : new TransactionLogger(loggerChannel, LOG_FILE);
+        Thread loggerThread = new Thread(txLogger, "TxLogger");
+        loggerThread.start();
+
+        // Executor for workers
+        BankMetrics metrics = new BankMetrics();
+        metrics.install();
+        metrics.watchChannel(logChannel);
+        ExecutorService workerPool = newWorkerExecutor(VIRTUAL_THREADS, POOL_SIZE);
+        long workersStarted = System.nanoTime();
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        if (WORKLOAD != null) {
+            // One client per WorkloadWorker; each gets its own split of the root random stream
+            System.out.println("Workload: " + WORKLOAD);
+            AccountSampler sampler = WORKLOAD.sampler(ledger.size());
+            SplittableRandom root = WORKLOAD.seed != null ? new SplittableRandom(WORKLOAD.seed) : new SplittableRandom();
+            for (int i = 0; i < CLIENTS; i++) {
+                futures.add(workerPool.submit(new WorkloadWorker(ledger, logChannel, metrics, successCounter, failCounter,
+                    WORKLOAD, sampler, root.split())));
+            }
+        } else {
+            // Submit ATM workers
+            for (int i = 0; i < ATM_WORKERS; i++) {
+                futures.add(workerPool.submit(new ATMWorker(ledger, logChannel, metrics, successCounter, failCounter, OPERATIONS_PER_WORKER)));
+            }
+
+            // Submit Transfer workers
+            for (int i = 0; i < TRANSFER_WORKERS; i++) {
+                futures.add(workerPool.submit(new TransferWorker(ledger, logChannel, metrics, successCounter, failCounter,
+                    OPERATIONS_PER_WORKER, opts.getInt("batch-size", 1))));
+            }
+        }
+
+        // Scheduled interest: a tick only bumps the epoch and logs one aggregate record for what accrued
+        // since the previous tick. Accounts catch up on their next access; the sweep below covers idle ones.
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        Runnable interestTask = () -> {
+            publishAccruedInterest(logChannel, interest);
+            int tick = interest.tick(INTEREST_RATE);
+            System.out.println("[Interest] Tick " + tick + " at " + (INTEREST_RATE * 100) + "%.");
+        };
+        scheduler.scheduleAtFixedRate(interestTask, INTEREST_PERIOD_SECONDS, INTEREST_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+        // Background sweep: one slice of the accounts per step, so every account is visited once per period
+        // without a long pause; accounts already touched by workers cost a racy epoch check.
+        int sweepChunk = (ledger.size() + INTEREST_SWEEP_SLICES - 1) / INTEREST_SWEEP_SLICES;
+        int[] sweepCursor = { 0 }; // only touched by the scheduler thread
+        Runnable sweepTask = () -> {
+            long sliceStart = System.nanoTime();
+            for (int n = 0; n < sweepChunk; n++) {
+                ledger.accrueInterest(sweepCursor[0]);
+                sweepCursor[0] = sweepCursor[0] + 1 == ledger.size() ? 0 : sweepCursor[0] + 1;
+            }
+            metrics.recordOp(OpType.INTEREST, System.nanoTime() - sliceStart);
+        };
+        long sweepStepMillis = Math.max(1, INTEREST_PERIOD_SECONDS * 1000L / INTEREST_SWEEP_SLICES);
+        scheduler.scheduleWithFixedDelay(sweepTask, sweepStepMillis, sweepStepMillis, TimeUnit.MILLISECONDS);
+
+        // Continuous audit: consistent cuts of every balance, taken while the workers keep running
+        if (opts.has("audit-interval-ms")) {
+            long interval = opts.getInt("audit-interval-ms", 1000);
+            scheduler.scheduleWithFixedDelay(() -> {
+                LedgerSnapshot cut = ledger.snapshot();
+                System.out.printf("[Audit] Cut %d: %.2f across %d accounts (%.2f ms)%n",
+                    cut.epoch, cut.totalCents / 100.0, cut.balances.length, cut.tookNanos / 1e6);
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        // Accounts opened while the workers run: zero balance, numbered on from the existing ones. The
+        // scheduler is the only opener, so the numbering cannot race.
+        if (opts.has("open-accounts-per-s")) {
+            if (sharded || offHeap || durable != null) {
+                System.err.println("--open-accounts-per-s needs --mode=accounts without --wal; ignored.");
+            } else {
+                long period = Math.max(1, 1_000_000L / Math.max(1, opts.getInt("open-accounts-per-s", 10)));
+                scheduler.scheduleAtFixedRate(() -> ledger.openAccount(String.format("A%03d", ledger.size() + 1), 0),
+                    period, period, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        // Periodic WAL snapshots bound recovery to one interval of log
+        if (durable != null) {
+            long interval = opts.getInt("snapshot-interval-s", 30);
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    durable.checkpoint();
+                } catch (IOException e) {
+                    System.err.println("Snapshot failed: " + e.getMessage());
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+
+        // Periodic metrics snapshots: CSV rows to --metrics-csv, or to stdout when only an interval is given
+        PrintStream metricsOut = null;
+        if (opts.has("metrics-csv") || opts.has("metrics-interval-ms")) {
+            metricsOut = opts.has("metrics-csv")
+                ? new PrintStream(Files.newOutputStream(Paths.get(opts.get("metrics-csv", ""))), false)
+                : System.out;
+            metricsOut.println(BankMetrics.csvHeader());
+            PrintStream snapshotOut = metricsOut;
+            long interval = opts.getInt("metrics-interval-ms", 1000);
+            scheduler.scheduleAtFixedRate(() -> metrics.writeSnapshot(snapshotOut), interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        // Wait for workers to finish
+        for (Future<Integer> f : futures) {
+            try {
+                f.get(); // wait for each worker
+            } catch (ExecutionException e) {
+                System.err.println("Worker threw exception: " + e.getMessage());
+            }
+        }
+
+        long workerNanos = System.nanoTime() - workersStarted;
+
+        // No more tasks: shutdown worker pool
+        workerPool.shutdown();
+        workerPool.awaitTermination(5, TimeUnit.SECONDS);
+
+        // Stop interest scheduler (and metrics snapshots), then write the last interval
+        scheduler.shutdown();
+        scheduler.awaitTermination(3, TimeUnit.SECONDS);
+        if (metricsOut != null) {
+            metrics.writeSnapshot(metricsOut);
+            if (metricsOut != System.out) metricsOut.close();
+        }
+
+        // Materialize any outstanding interest so the log accounts for every cent before the logger stops
+        for (int i = 0; i < ledger.size(); i++) {
+            ledger.accrueInterest(i);
+        }
+        publishAccruedInterest(logChannel, interest);
+        if (durable != null) {
+            durable.checkpoint(); // a clean shutdown leaves nothing to replay
+        }
+
+        // Allow some time for logger to process queued transactions
+        System.out.println("All workers finished. Signalling logger to stop after draining the log channel...");
+        txLogger.shutdown();
+
+        // Ensure logger thread terminates
+        loggerThread.join(5000);
+        logChannel.close();
+        if (fraud != null) {
+            fraud.shutdown();
+            fraudThread.join(5000);
+        }
+
+        // Print final summary (per-account lines only for small ledgers)
+        System.out.println("\n=== Simulation Summary ===");
+        LedgerSnapshot finalCut = ledger.snapshot();
+        if (ledger.size() <= 20) {
+            for (int i = 0; i < ledger.size(); i++) {
+                System.out.printf("%s : Balance = %.2f%n", ledger.accountId(i), finalCut.balances[i]/100.0);
+            }
+        }
+        if (BALANCES_DIR != null) LogReplay.writeBalances(BALANCES_DIR.resolve("final.csv"), ledger, finalCut);
+        ledger.shutdown();
+        System.out.printf("Total money supply across %d accounts: %.2f%n", ledger.size(), finalCut.totalCents/100.0);
+        System.out.printf("Successful transactions: %d%n", successCounter.get());
+        System.out.printf("Failed transactions: %d%n", failCounter.get());
+        System.out.printf("Transfer lock conflicts: %d, CAS retries: %d%n",
+            ContentionStats.lockConflicts.sum(), ContentionStats.casRetries.sum());
+        LatencyHistogram opLatency = metrics.mergedClientOps();
+        System.out.printf("Workers: %d clients on %s, %.0f ops/sec%n", CLIENTS,
+            VIRTUAL_THREADS ? "virtual threads" : POOL_SIZE + " platform threads", opLatency.count() * 1e9 / workerNanos);
+        System.out.println("Operation latency: " + StripedLatencyRecorder.summary(opLatency));
+        metrics.printReport(System.out);
+        if (fraud != null) System.out.println(fraud.report());
+        BankMetrics.uninstall();
+        if (txLogger.failure() != null) {
+            System.out.printf("Transaction log FAILED: %s; %d later transactions discarded%n",
+                txLogger.failure(), txLogger.discarded());
+        } else {
+            System.out.println("Transactions logged to file: " + LOG_FILE);
+        }
+        System.out.println("Simulation complete.");
+    }
+}
+  